@@ -0,0 +1,100 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/// Exact k nearest neighbours by cosine similarity, found with a brute-force scan of all the vectors.
+///
+/// The vectors are kept normalised in a single flat array and scanned with [VectorSimilarity#dotProduct(float[], float[], int)],
+/// which makes it the ground truth for the approximate searches.
+public final class ExactKnn {
+
+    private final int dimensions;
+    private final int size;
+    private final float[] vectors;
+
+    public ExactKnn(List<float[]> vectors) {
+        this.size = vectors.size();
+        this.dimensions = vectors.isEmpty() ? 0 : vectors.getFirst().length;
+        this.vectors = new float[size * dimensions];
+        for (int i = 0; i < size; i++) {
+            float[] vector = vectors.get(i);
+            if (vector.length != dimensions) {
+                throw new IllegalArgumentException("Vector " + i + " has " + vector.length + " dimensions instead of " + dimensions);
+            }
+            System.arraycopy(VectorSimilarity.normalised(vector), 0, this.vectors, i * dimensions, dimensions);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /// Positions of the `k` vectors most similar to `query`, the most similar first.
+    public int[] topK(float[] query, int k) {
+        if (query.length != dimensions) {
+            throw new IllegalArgumentException("Query has " + query.length + " dimensions instead of " + dimensions);
+        }
+        float[] normalised = VectorSimilarity.normalised(query);
+        int limit = Math.min(k, size);
+        // sorted ascending by similarity, so the worst one is at 0
+        int[] ids = new int[limit];
+        float[] similarities = new float[limit];
+        int found = 0;
+        for (int i = 0; i < size; i++) {
+            float similarity = VectorSimilarity.dotProduct(normalised, vectors, i * dimensions);
+            if (found < limit) {
+                insert(ids, similarities, found++, i, similarity);
+            } else if (limit > 0 && similarity > similarities[0]) {
+                // drop the worst one
+                System.arraycopy(ids, 1, ids, 0, limit - 1);
+                System.arraycopy(similarities, 1, similarities, 0, limit - 1);
+                insert(ids, similarities, limit - 1, i, similarity);
+            }
+        }
+        int[] result = new int[limit];
+        for (int i = 0; i < limit; i++) {
+            result[i] = ids[limit - 1 - i];
+        }
+        return result;
+    }
+
+    /// [#topK(float[], int)] of every query, computed in parallel in the given `pool`,
+    /// so that the common pool isn't hogged by the scan.
+    public int[][] topK(List<float[]> queries, int k, ForkJoinPool pool) {
+        return pool.submit(() -> IntStream.range(0, queries.size())
+                .parallel()
+                .mapToObj(i -> topK(queries.get(i), k))
+                .toArray(int[][]::new))
+            .join();
+    }
+
+    // insertion into the sorted prefix of length `count`, k is small
+    private static void insert(int[] ids, float[] similarities, int count, int id, float similarity) {
+        int position = count;
+        while (position > 0 && similarities[position - 1] > similarity) {
+            ids[position] = ids[position - 1];
+            similarities[position] = similarities[position - 1];
+            position--;
+        }
+        ids[position] = id;
+        similarities[position] = similarity;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/// Kernels for amounts kept as `long` minor units (e.g. cents), written with the Vector API.
+///
+/// The results are exactly the ones of [java.math.BigDecimal] with [java.math.RoundingMode#HALF_UP],
+/// i.e. halves are rounded away from zero, without allocating anything.
+///
+/// Please remember to run with a VM option
+/// `--add-modules jdk.incubator.vector`
+/// For more details, please see [JEP-508](https://openjdk.org/jeps/508).
+public final class FixedPointArithmetic {
+
+    private static final VectorSpecies<Long> SPECIES = LongVector.SPECIES_PREFERRED;
+
+    // up to this magnitude `amount * percent + 50` is exact as a double, so dividing by 100 through it is off by at most one
+    private static final long VECTOR_SAFE_MAGNITUDE = ((1L << 53) - 50) / 100;
+
+    private FixedPointArithmetic() {
+    }
+
+    /// `amount * percent / 100`, rounded half up, like
+    /// `BigDecimal.valueOf(amount).multiply(BigDecimal.valueOf(percent)).divide(BigDecimal.valueOf(100), 0, HALF_UP)`.
+    ///
+    /// @throws ArithmeticException when the result doesn't fit in a `long`
+    public static long percentOf(long amount, int percent) {
+        checkPercent(percent);
+        long numerator = Math.addExact(Math.multiplyExact(Math.absExact(amount), percent), 50);
+        long magnitude = numerator / 100;
+        return amount < 0 ? -magnitude : magnitude;
+    }
+
+    /// `result[i] = percentOf(amounts[i], percent)`, `result` may be `amounts` itself.
+    ///
+    /// Branch-free for the typical amounts, the vector loop falls back to [#percentOf(long, int)]
+    /// only for a chunk containing an amount of more than `(2^53 - 50) / 100` minor units,
+    /// i.e. with cents, of more than about 900 billion major units.
+    public static void percentOf(long[] amounts, int percent, long[] result) {
+        checkPercent(percent);
+        if (result.length < amounts.length) {
+            throw new IllegalArgumentException("Result too short: " + result.length + " < " + amounts.length);
+        }
+        int i = 0;
+        for (int upperBound = SPECIES.loopBound(amounts.length); i < upperBound; i += SPECIES.length()) {
+            LongVector amount = LongVector.fromArray(SPECIES, amounts, i);
+            LongVector magnitude = amount.lanewise(VectorOperators.ABS);
+            // ABS of Long.MIN_VALUE stays negative, hence the unsigned comparison
+            if (magnitude.compare(VectorOperators.UNSIGNED_GT, VECTOR_SAFE_MAGNITUDE).anyTrue()) {
+                for (int j = i; j < i + SPECIES.length(); j++) {
+                    result[j] = percentOf(amounts[j], percent);
+                }
+                continue;
+            }
+            LongVector numerator = magnitude.mul(percent).add(50);
+            DoubleVector approximate = (DoubleVector) numerator.convert(VectorOperators.L2D, 0);
+            LongVector quotient = (LongVector) approximate.mul(0.01).convert(VectorOperators.D2L, 0);
+            // correct the quotient, which may be one off due to 0.01 not being exact
+            LongVector remainder = numerator.sub(quotient.mul(100));
+            quotient = quotient
+                .lanewise(VectorOperators.ADD, 1, remainder.compare(VectorOperators.GE, 100))
+                .lanewise(VectorOperators.SUB, 1, remainder.compare(VectorOperators.LT, 0));
+            VectorMask<Long> negative = amount.compare(VectorOperators.LT, 0);
+            quotient.lanewise(VectorOperators.NEG, negative).intoArray(result, i);
+        }
+        for (; i < amounts.length; i++) {
+            result[i] = percentOf(amounts[i], percent);
+        }
+    }
+
+    private static void checkPercent(int percent) {
+        if (percent < 0 || percent > 100) {
+            throw new IllegalArgumentException("Percent out of range [0, 100]: " + percent);
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.random.RandomGenerator;
+
+/// In-process approximate k nearest neighbours by cosine similarity, a
+/// [Hierarchical Navigable Small World](https://arxiv.org/abs/1603.09320) graph,
+/// with the same parameters as the Elasticsearch `hnsw` and `int8_hnsw` index options:
+/// `m` (neighbours per node, twice as many on the bottom layer) and `efConstruction`; `numCandidates` when searching.
+///
+/// With `int8` set, the normalised vectors are scalar quantized to 255 levels, like `int8_hnsw` does,
+/// so the quantization error affects both the graph and the search.
+///
+/// Built once, searches may run concurrently.
+public final class HnswIndex {
+
+    private record Candidate(int id, float similarity) {
+    }
+
+    private static final Comparator<Candidate> MOST_SIMILAR_FIRST = Comparator.comparingDouble(Candidate::similarity).reversed();
+    private static final Comparator<Candidate> LEAST_SIMILAR_FIRST = Comparator.comparingDouble(Candidate::similarity);
+
+    private final int dimensions;
+    private final int m;
+    private final int efConstruction;
+    private final float[] vectors;
+    // neighbours[node][layer], the node is on layers 0..neighbours[node].length - 1
+    private final int[][][] neighbours;
+    private int entryPoint = -1;
+    private int topLayer = -1;
+
+    private HnswIndex(int dimensions, int size, int m, int efConstruction) {
+        this.dimensions = dimensions;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.vectors = new float[size * dimensions];
+        this.neighbours = new int[size][][];
+    }
+
+    public static HnswIndex build(List<float[]> vectors, int m, int efConstruction, boolean int8, RandomGenerator random) {
+        if (m < 2 || efConstruction < 1) {
+            throw new IllegalArgumentException("Invalid parameters: m=" + m + ", efConstruction=" + efConstruction);
+        }
+        int dimensions = vectors.isEmpty() ? 0 : vectors.getFirst().length;
+        HnswIndex index = new HnswIndex(dimensions, vectors.size(), m, efConstruction);
+        float scale = int8 ? quantizationScale(vectors) : 0;
+        double levelMultiplier = 1 / Math.log(m);
+        for (int id = 0; id < vectors.size(); id++) {
+            float[] vector = VectorSimilarity.normalised(vectors.get(id));
+            if (int8) {
+                quantize(vector, scale);
+            }
+            System.arraycopy(vector, 0, index.vectors, id * dimensions, dimensions);
+            int layer = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            index.insert(id, layer);
+        }
+        return index;
+    }
+
+    /// Ids (positions in the list given when building) of the `k` most similar vectors found, the most similar first.
+    /// Up to `numCandidates` (at least `k`) candidates are considered on the bottom layer.
+    public int[] search(float[] query, int k, int numCandidates) {
+        if (entryPoint < 0) {
+            return new int[0];
+        }
+        float[] normalised = VectorSimilarity.normalised(query);
+        int current = entryPoint;
+        for (int layer = topLayer; layer > 0; layer--) {
+            current = greedy(normalised, current, layer);
+        }
+        List<Candidate> found = searchLayer(normalised, current, Math.max(k, numCandidates), 0);
+        return found.stream().limit(k).mapToInt(Candidate::id).toArray();
+    }
+
+    private void insert(int id, int layer) {
+        neighbours[id] = new int[layer + 1][];
+        for (int l = 0; l <= layer; l++) {
+            neighbours[id][l] = new int[0];
+        }
+        if (entryPoint < 0) {
+            entryPoint = id;
+            topLayer = layer;
+            return;
+        }
+        float[] vector = vectorOf(id);
+        int current = entryPoint;
+        for (int l = topLayer; l > layer; l--) {
+            current = greedy(vector, current, l);
+        }
+        for (int l = Math.min(layer, topLayer); l >= 0; l--) {
+            List<Candidate> candidates = searchLayer(vector, current, efConstruction, l);
+            int[] selected = selectNeighbours(candidates, m);
+            neighbours[id][l] = selected;
+            for (int neighbour : selected) {
+                connect(neighbour, id, l);
+            }
+            current = candidates.getFirst().id();
+        }
+        if (layer > topLayer) {
+            entryPoint = id;
+            topLayer = layer;
+        }
+    }
+
+    private void connect(int node, int newNeighbour, int layer) {
+        int[] current = neighbours[node][layer];
+        int[] extended = new int[current.length + 1];
+        System.arraycopy(current, 0, extended, 0, current.length);
+        extended[current.length] = newNeighbour;
+        int maxNeighbours = layer == 0 ? 2 * m : m;
+        if (extended.length <= maxNeighbours) {
+            neighbours[node][layer] = extended;
+            return;
+        }
+        float[] vector = vectorOf(node);
+        List<Candidate> candidates = new ArrayList<>(extended.length);
+        for (int neighbour : extended) {
+            candidates.add(new Candidate(neighbour, similarity(vector, neighbour)));
+        }
+        candidates.sort(MOST_SIMILAR_FIRST);
+        neighbours[node][layer] = selectNeighbours(candidates, maxNeighbours);
+    }
+
+    /// The heuristic of the paper: a candidate is taken only when it's more similar to the node
+    /// than to any neighbour taken so far, which keeps the graph navigable between clusters.
+    /// `candidates` must be sorted, the most similar first.
+    private int[] selectNeighbours(List<Candidate> candidates, int count) {
+        int[] selected = new int[Math.min(count, candidates.size())];
+        int taken = 0;
+        for (Candidate candidate : candidates) {
+            if (taken == selected.length) {
+                break;
+            }
+            float[] vector = vectorOf(candidate.id());
+            boolean diverse = true;
+            for (int i = 0; i < taken && diverse; i++) {
+                diverse = similarity(vector, selected[i]) < candidate.similarity();
+            }
+            if (diverse) {
+                selected[taken++] = candidate.id();
+            }
+        }
+        return taken == selected.length ? selected : java.util.Arrays.copyOf(selected, taken);
+    }
+
+    private int greedy(float[] query, int start, int layer) {
+        int current = start;
+        float best = similarity(query, current);
+        boolean improved = true;
+        while (improved) {
+            improved = false;
+            for (int neighbour : neighbours[current][layer]) {
+                float similarity = similarity(query, neighbour);
+                if (similarity > best) {
+                    best = similarity;
+                    current = neighbour;
+                    improved = true;
+                }
+            }
+        }
+        return current;
+    }
+
+    /// The `ef` most similar nodes reachable from `start` on the layer, the most similar first.
+    private List<Candidate> searchLayer(float[] query, int start, int ef, int layer) {
+        BitSet visited = new BitSet(neighbours.length);
+        PriorityQueue<Candidate> toVisit = new PriorityQueue<>(MOST_SIMILAR_FIRST);
+        PriorityQueue<Candidate> found = new PriorityQueue<>(LEAST_SIMILAR_FIRST);
+        Candidate first = new Candidate(start, similarity(query, start));
+        visited.set(start);
+        toVisit.add(first);
+        found.add(first);
+        while (!toVisit.isEmpty()) {
+            Candidate closest = toVisit.poll();
+            if (found.size() >= ef && closest.similarity() < found.peek().similarity()) {
+                break;
+            }
+            for (int neighbour : neighbours[closest.id()][layer]) {
+                if (visited.get(neighbour)) {
+                    continue;
+                }
+                visited.set(neighbour);
+                float similarity = similarity(query, neighbour);
+                if (found.size() < ef || similarity > found.peek().similarity()) {
+                    Candidate candidate = new Candidate(neighbour, similarity);
+                    toVisit.add(candidate);
+                    found.add(candidate);
+                    if (found.size() > ef) {
+                        found.poll();
+                    }
+                }
+            }
+        }
+        List<Candidate> result = new ArrayList<>(found);
+        result.sort(MOST_SIMILAR_FIRST);
+        return result;
+    }
+
+    private float similarity(float[] query, int id) {
+        return VectorSimilarity.dotProduct(query, vectors, id * dimensions);
+    }
+
+    private float[] vectorOf(int id) {
+        float[] vector = new float[dimensions];
+        System.arraycopy(vectors, id * dimensions, vector, 0, dimensions);
+        return vector;
+    }
+
+    // one scale for all the components, the 99.9th percentile of their magnitudes is mapped to 127
+    private static float quantizationScale(List<float[]> vectors) {
+        int sampled = Math.min(vectors.size(), 1_000);
+        List<Float> magnitudes = new ArrayList<>();
+        for (int i = 0; i < sampled; i++) {
+            for (float component : VectorSimilarity.normalised(vectors.get(i))) {
+                magnitudes.add(Math.abs(component));
+            }
+        }
+        if (magnitudes.isEmpty()) {
+            return 1;
+        }
+        magnitudes.sort(null);
+        float quantile = magnitudes.get((int) (0.999 * (magnitudes.size() - 1)));
+        return quantile == 0 ? 1 : quantile / 127;
+    }
+
+    private static void quantize(float[] vector, float scale) {
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = Math.clamp(Math.round(vector[i] / scale), -127, 127) * scale;
+        }
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/// Similarity kernels for `float` embeddings, written with the Vector API.
+///
+/// Please remember to run with a VM option
+/// `--add-modules jdk.incubator.vector`
+/// For more details, please see [JEP-508](https://openjdk.org/jeps/508).
+public final class VectorSimilarity {
+
+    private static final VectorSpecies<Float> SPECIES = FloatVector.SPECIES_PREFERRED;
+
+    private VectorSimilarity() {
+    }
+
+    public static float dotProduct(float[] a, float[] b) {
+        if (a.length != b.length) {
+            throw new IllegalArgumentException("Vectors differ in length: " + a.length + " vs " + b.length);
+        }
+        return dotProduct(a, b, 0);
+    }
+
+    /// Dot product of `a` and the `a.length` elements of `matrix`, starting at `offset`.
+    /// Useful when many vectors are stored one after another in a single flat array.
+    public static float dotProduct(float[] a, float[] matrix, int offset) {
+        int length = a.length;
+        FloatVector sum = FloatVector.zero(SPECIES);
+        int i = 0;
+        for (int upperBound = SPECIES.loopBound(length); i < upperBound; i += SPECIES.length()) {
+            FloatVector va = FloatVector.fromArray(SPECIES, a, i);
+            FloatVector vb = FloatVector.fromArray(SPECIES, matrix, offset + i);
+            sum = va.fma(vb, sum);
+        }
+        float result = sum.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            result += a[i] * matrix[offset + i];
+        }
+        return result;
+    }
+
+    public static float norm(float[] a) {
+        return (float) Math.sqrt(dotProduct(a, a, 0));
+    }
+
+    public static float cosine(float[] a, float[] b) {
+        float normProduct = norm(a) * norm(b);
+        return normProduct == 0 ? 0 : dotProduct(a, b) / normProduct;
+    }
+
+    /// Returns a copy of `a` scaled to unit length, so that the cosine of two normalised vectors is their dot product.
+    /// A zero vector stays zero.
+    public static float[] normalised(float[] a) {
+        float[] result = new float[a.length];
+        float norm = norm(a);
+        if (norm == 0) {
+            return result;
+        }
+        scale(a, 1 / norm, result);
+        return result;
+    }
+
+    /// `result = (a + b) / 2`, `result` may be `a` or `b` itself.
+    /// The average of two normalised vectors points half way between them, e.g. between an image and a text query.
+    public static void average(float[] a, float[] b, float[] result) {
+        if (a.length != b.length) {
+            throw new IllegalArgumentException("Vectors differ in length: " + a.length + " vs " + b.length);
+        }
+        int i = 0;
+        for (int upperBound = SPECIES.loopBound(a.length); i < upperBound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, a, i).add(FloatVector.fromArray(SPECIES, b, i)).mul(0.5f).intoArray(result, i);
+        }
+        for (; i < a.length; i++) {
+            result[i] = (a[i] + b[i]) * 0.5f;
+        }
+    }
+
+    /// `result = a * factor`, `result` may be `a` itself
+    public static void scale(float[] a, float factor, float[] result) {
+        int i = 0;
+        for (int upperBound = SPECIES.loopBound(a.length); i < upperBound; i += SPECIES.length()) {
+            FloatVector.fromArray(SPECIES, a, i).mul(factor).intoArray(result, i);
+        }
+        for (; i < a.length; i++) {
+            result[i] = a[i] * factor;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+
+/// Applies the [DiscountCalculator] rules to many prices at once, e.g. repricing the whole catalogue for a membership tier.
+///
+/// Prices are columnar: amounts in cents (`long`, see [Price#cents()]) and, separately, currency codes.
+/// The member discount is applied first, then the quantity discount, each rounded half up to full cents,
+/// which gives exactly the same result as [#discountedPrice(BigDecimal, boolean, int)], without any `BigDecimal` in the loop.
+final class BulkPricingEngine {
+
+    /// Prices of many items; `priceless` tells the items without a price apart,
+    /// a price may come without a currency.
+    record PriceColumns(long[] cents, String[] currencies, boolean[] priceless) {
+        PriceColumns {
+            if (cents.length != currencies.length || cents.length != priceless.length) {
+                throw new IllegalArgumentException("Columns differ in length: " + cents.length + " vs " + currencies.length
+                    + " vs " + priceless.length);
+            }
+        }
+
+        static PriceColumns of(List<Price> prices) {
+            long[] cents = new long[prices.size()];
+            String[] currencies = new String[prices.size()];
+            boolean[] priceless = new boolean[prices.size()];
+            for (int i = 0; i < prices.size(); i++) {
+                Price price = prices.get(i);
+                if (price == null) {
+                    priceless[i] = true;
+                } else {
+                    cents[i] = price.cents();
+                    currencies[i] = price.currency();
+                }
+            }
+            return new PriceColumns(cents, currencies, priceless);
+        }
+
+        int size() {
+            return cents.length;
+        }
+
+        Price price(int i) {
+            return priceless[i] ? null : new Price(cents[i], currencies[i]);
+        }
+    }
+
+    private final DiscountCalculator rules;
+
+    BulkPricingEngine(DiscountCalculator rules) {
+        this.rules = rules;
+    }
+
+    long[] reprice(long[] cents, boolean goldMember, int items) {
+        long[] result = new long[cents.length];
+        reprice(cents, goldMember, items, result);
+        return result;
+    }
+
+    /// `result` may be `cents` itself.
+    void reprice(long[] cents, boolean goldMember, int items, long[] result) {
+        FixedPointArithmetic.percentOf(cents, 100 - rules.memberDiscountPercentage(goldMember), result);
+        FixedPointArithmetic.percentOf(result, 100 - rules.itemDiscountPercentage(items), result);
+    }
+
+    PriceColumns reprice(PriceColumns prices, boolean goldMember, int items) {
+        return new PriceColumns(reprice(prices.cents(), goldMember, items), prices.currencies(), prices.priceless());
+    }
+
+    /// The same items, with the prices discounted for the given member buying the given number of items.
+    SearchResult annotate(SearchResult result, boolean goldMember, int items) {
+        List<CatalogueItem> found = result.items();
+        PriceColumns discounted = reprice(PriceColumns.of(found.stream().map(CatalogueItem::price).toList()), goldMember, items);
+        List<CatalogueItem> annotated = new ArrayList<>(found.size());
+        for (int i = 0; i < found.size(); i++) {
+            CatalogueItem item = found.get(i);
+            annotated.add(new CatalogueItem(item.filename(), item.fullPath(), discounted.price(i)));
+        }
+        return new SearchResult(result.query(), annotated, result.partial(), result.cursor());
+    }
+
+    /// The reference, one price at a time.
+    BigDecimal discountedPrice(BigDecimal price, boolean goldMember, int items) {
+        BigDecimal afterMemberDiscount = applyDiscount(price.setScale(Price.SCALE, RoundingMode.HALF_UP), rules.memberDiscountPercentage(goldMember));
+        return applyDiscount(afterMemberDiscount, rules.itemDiscountPercentage(items));
+    }
+
+    private static BigDecimal applyDiscount(BigDecimal price, int discountPercentage) {
+        return price.multiply(BigDecimal.valueOf(100 - discountPercentage))
+            .divide(BigDecimal.valueOf(100), Price.SCALE, RoundingMode.HALF_UP);
+    }
+}
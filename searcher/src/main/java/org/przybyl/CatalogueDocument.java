@@ -0,0 +1,58 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.przybyl.EnterpriseySearcher.OBJECT_MAPPER;
+
+/// A catalogue item together with its embedding, as stored in the index. The embedding may be `null`, when not fetched.
+@JsonIgnoreProperties(ignoreUnknown = true)
+record CatalogueDocument(String filename, @JsonProperty("full-path") String fullPath, Price price, float[] embedding) {
+
+    CatalogueItem item() {
+        return new CatalogueItem(filename, fullPath, price);
+    }
+
+    /// Reads the documents of `index` and `create` actions of a bulk NDJSON file, like `data.ndjson`.
+    static List<CatalogueDocument> readBulkFile(Path bulkFile) throws IOException {
+        List<CatalogueDocument> documents = new ArrayList<>();
+        try (BufferedReader reader = Files.newBufferedReader(bulkFile)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                String action = OBJECT_MAPPER.readTree(line).fieldNames().next();
+                // only delete actions come without a document
+                String payload = action.equals("delete") ? null : reader.readLine();
+                if (action.equals("index") || action.equals("create")) {
+                    documents.add(OBJECT_MAPPER.readValue(payload, CatalogueDocument.class));
+                }
+            }
+        }
+        return documents;
+    }
+}
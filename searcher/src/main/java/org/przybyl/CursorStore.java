@@ -0,0 +1,86 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.LongSupplier;
+
+/// The paged searches in progress, by the cursor tokens returned with their pages.
+///
+/// Every page comes with a new token, so the same page can't be requested twice by accident.
+/// A search not continued within `timeToLive` is closed, like the point in time it reads from.
+final class CursorStore {
+
+    private record Entry(PagedSearch search, long expiresAt) {
+    }
+
+    private final long timeToLiveNanos;
+    private final LongSupplier nanoClock;
+    // guarded by this
+    private final Map<String, Entry> entries = new HashMap<>();
+
+    CursorStore(Duration timeToLive, LongSupplier nanoClock) {
+        this.timeToLiveNanos = timeToLive.toNanos();
+        this.nanoClock = nanoClock;
+    }
+
+    /// Returns the token to continue the search with.
+    String register(PagedSearch search) {
+        String token = UUID.randomUUID().toString();
+        List<Entry> expired = new ArrayList<>();
+        long now = nanoClock.getAsLong();
+        synchronized (this) {
+            entries.values().removeIf(entry -> {
+                boolean isExpired = entry.expiresAt() - now <= 0;
+                if (isExpired) {
+                    expired.add(entry);
+                }
+                return isExpired;
+            });
+            entries.put(token, new Entry(search, now + timeToLiveNanos));
+        }
+        // closing calls Elasticsearch, so not under the lock
+        expired.forEach(entry -> entry.search().close());
+        return token;
+    }
+
+    /// Removes and returns the search of the token.
+    /// @throws IllegalArgumentException when the token is unknown, was used already or has expired
+    PagedSearch take(String token) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.remove(token);
+        }
+        if (entry == null) {
+            throw new IllegalArgumentException("Unknown, used or expired cursor: " + token);
+        }
+        if (entry.expiresAt() - nanoClock.getAsLong() <= 0) {
+            entry.search().close();
+            throw new IllegalArgumentException("Expired cursor: " + token);
+        }
+        return entry.search();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
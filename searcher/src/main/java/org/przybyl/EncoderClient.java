@@ -0,0 +1,284 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static org.przybyl.EnterpriseySearcher.OBJECT_MAPPER;
+
+/// Non-blocking client of the Image-Text Encoder service.
+///
+/// Requests are sent with [HttpClient#sendAsync], so no thread is parked while the encoder works.
+/// The client talks to one or more encoder replicas and picks, for every request,
+/// the replica with the least outstanding requests (ties are broken round-robin).
+/// At most `maxConcurrency` requests are in flight at once, the rest wait in a queue
+/// without holding any thread.
+///
+/// Images are sent to the `encode_image` URL next to each `encode_text` one, base64-encoded on the fly
+/// while the request body is written, so neither the base64 of an image nor its JSON is ever held in memory,
+/// and an image file is never read into memory as a whole either.
+///
+/// Connections are pooled and kept alive by the [HttpClient] itself,
+/// the idle timeout can be tuned with the `jdk.httpclient.keepalive.timeout` system property.
+final class EncoderClient {
+
+    static final Duration DEFAULT_CONNECT_TIMEOUT = Duration.ofSeconds(2);
+    static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(10);
+    static final int DEFAULT_MAX_CONCURRENCY = 16;
+    private static final byte[] IMAGE_PREFIX = "{\"image_b64\":\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IMAGE_SUFFIX = "\"}".getBytes(StandardCharsets.US_ASCII);
+    private static final Base64.Encoder BASE64 = Base64.getEncoder();
+
+    private final HttpClient httpClient;
+    private final List<Endpoint> endpoints;
+    private final Duration requestTimeout;
+    private final Semaphore permits;
+    private final Queue<Runnable> waiting = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger roundRobin = new AtomicInteger();
+
+    EncoderClient(List<URI> endpoints, HttpClient.Version version, Duration connectTimeout,
+                  Duration requestTimeout, int maxConcurrency) {
+        if (endpoints.isEmpty()) {
+            throw new IllegalArgumentException("At least one encoder endpoint is required");
+        }
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be positive, got: " + maxConcurrency);
+        }
+        this.httpClient = HttpClient.newBuilder()
+            .version(version)
+            .connectTimeout(connectTimeout)
+            .build();
+        this.endpoints = endpoints.stream().map(Endpoint::new).toList();
+        this.requestTimeout = requestTimeout;
+        this.permits = new Semaphore(maxConcurrency);
+    }
+
+    /// Creates a client for a comma-separated list of `encode_text` URLs, e.g. the `ENCODER_URL` variable.
+    /// HTTP/2 is preferred, the client falls back to HTTP/1.1 for replicas which don't upgrade.
+    static EncoderClient forUrls(String commaSeparatedUrls) {
+        List<URI> uris = Arrays.stream(commaSeparatedUrls.split(","))
+            .map(String::strip)
+            .filter(url -> !url.isEmpty())
+            .map(URI::create)
+            .toList();
+        return new EncoderClient(uris, HttpClient.Version.HTTP_2,
+            DEFAULT_CONNECT_TIMEOUT, DEFAULT_REQUEST_TIMEOUT, DEFAULT_MAX_CONCURRENCY);
+    }
+
+    CompletableFuture<float[]> encodeText(String text) {
+        ObjectNode requestBody = OBJECT_MAPPER.createObjectNode();
+        requestBody.put("text", text);
+        return send(Endpoint::uri, HttpRequest.BodyPublishers.ofString(requestBody.toString()));
+    }
+
+    CompletableFuture<float[]> encodeImage(ImageSource image) {
+        long size;
+        try {
+            size = image.size();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // the body is `{"image_b64":"<base64>"}`, the same as the JSON the encoder expects, with known length
+        long length = IMAGE_PREFIX.length + 4 * ((size + 2) / 3) + IMAGE_SUFFIX.length;
+        HttpRequest.BodyPublisher body = HttpRequest.BodyPublishers.fromPublisher(
+            HttpRequest.BodyPublishers.ofInputStream(() -> {
+                try {
+                    return new SequenceInputStream(Collections.enumeration(List.of(
+                        new ByteArrayInputStream(IMAGE_PREFIX),
+                        new Base64InputStream(image.open(), size),
+                        new ByteArrayInputStream(IMAGE_SUFFIX))));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }),
+            length);
+        return send(Endpoint::imageUri, body);
+    }
+
+    /// Number of requests currently sent to each endpoint, in the order the endpoints were given.
+    List<Integer> outstandingRequests() {
+        return endpoints.stream().map(e -> e.outstanding().get()).toList();
+    }
+
+    private CompletableFuture<float[]> send(Function<Endpoint, URI> uri, HttpRequest.BodyPublisher body) {
+        CompletableFuture<float[]> result = new CompletableFuture<>();
+        waiting.add(() -> dispatch(uri, body, result));
+        drain();
+        return result;
+    }
+
+    private void dispatch(Function<Endpoint, URI> uri, HttpRequest.BodyPublisher body, CompletableFuture<float[]> result) {
+        Endpoint endpoint = leastOutstanding();
+        endpoint.outstanding().incrementAndGet();
+        CompletableFuture<float[]> call;
+        try {
+            HttpRequest request = HttpRequest.newBuilder()
+                .uri(uri.apply(endpoint))
+                .timeout(requestTimeout)
+                .header("Content-Type", "application/json")
+                .POST(body)
+                .build();
+            call = httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                .thenApply(EncoderClient::parseEmbedding);
+        } catch (RuntimeException e) {
+            call = CompletableFuture.failedFuture(e);
+        }
+        call.whenComplete((vector, ex) -> {
+            endpoint.outstanding().decrementAndGet();
+            permits.release();
+            drain();
+            if (ex == null) {
+                result.complete(vector);
+            } else {
+                result.completeExceptionally(ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex);
+            }
+        });
+    }
+
+    // a permit is always released before draining, so a task enqueued concurrently is never left behind
+    private void drain() {
+        while (!waiting.isEmpty() && permits.tryAcquire()) {
+            Runnable task = waiting.poll();
+            if (task == null) {
+                permits.release();
+            } else {
+                task.run();
+            }
+        }
+    }
+
+    private Endpoint leastOutstanding() {
+        int size = endpoints.size();
+        int start = Math.floorMod(roundRobin.getAndIncrement(), size);
+        Endpoint best = endpoints.get(start);
+        for (int i = 1; i < size; i++) {
+            Endpoint candidate = endpoints.get((start + i) % size);
+            if (candidate.outstanding().get() < best.outstanding().get()) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private static float[] parseEmbedding(HttpResponse<byte[]> response) {
+        try {
+            if (response.statusCode() != 200) {
+                throw new BackendResponseException(response.statusCode(), "Failed to encode. Status code: [%d], Response: [%s]"
+                    .formatted(response.statusCode(), new String(response.body(), StandardCharsets.UTF_8)));
+            }
+            EmbeddingResponse embeddingResponse = OBJECT_MAPPER.readValue(response.body(), EmbeddingResponse.class);
+            if (embeddingResponse.success()) {
+                return embeddingResponse.embedding();
+            }
+            // the encoder is fine, it just couldn't encode this one
+            throw new BackendResponseException(response.statusCode(),
+                "Encoding operation failed: " + new String(response.body(), StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private record Endpoint(URI uri, URI imageUri, AtomicInteger outstanding) {
+        Endpoint(URI uri) {
+            this(uri, uri.resolve("encode_image"), new AtomicInteger());
+        }
+    }
+
+    /// Base64 of the wrapped stream, encoded chunk by chunk, closes the wrapped stream when closed.
+    /// Fails when the wrapped stream isn't exactly `expectedSize` bytes long, e.g. because the file changed
+    /// after the length of the request had been computed, instead of sending a body of another length.
+    private static final class Base64InputStream extends InputStream {
+        // a multiple of 3, so only the last chunk is padded
+        private final byte[] chunk = new byte[3 * 1024];
+        private final byte[] encoded = new byte[4 * 1024];
+        private final InputStream source;
+        private final long expectedSize;
+        private long sourceRead;
+        private int position;
+        private int limit;
+
+        Base64InputStream(InputStream source, long expectedSize) {
+            this.source = source;
+            this.expectedSize = expectedSize;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            return encoded[position++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (position == limit && !fill()) {
+                return -1;
+            }
+            int read = Math.min(length, limit - position);
+            System.arraycopy(encoded, position, buffer, offset, read);
+            position += read;
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+
+        private boolean fill() throws IOException {
+            int read = source.readNBytes(chunk, 0, chunk.length);
+            sourceRead += read;
+            if (sourceRead > expectedSize || read == 0 && sourceRead < expectedSize) {
+                throw new IOException("The image changed while it was being sent: expected %d bytes, but %s".formatted(
+                    expectedSize, read == 0 ? "there were only " + sourceRead : "there were more"));
+            }
+            if (read == 0) {
+                return false;
+            }
+            position = 0;
+            limit = BASE64.encode(read == chunk.length ? chunk : Arrays.copyOf(chunk, read), encoded);
+            return true;
+        }
+    }
+}
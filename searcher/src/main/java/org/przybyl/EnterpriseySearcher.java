@@ -18,26 +18,33 @@
 package org.przybyl;
 
 import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
 import co.elastic.clients.elasticsearch.core.SearchResponse;
 import co.elastic.clients.elasticsearch.core.search.Hit;
+import co.elastic.clients.elasticsearch.indices.stats.IndexStats;
 import co.elastic.clients.json.jackson.JacksonJsonpMapper;
 import co.elastic.clients.transport.ElasticsearchTransport;
 import co.elastic.clients.transport.rest_client.RestClientTransport;
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ObjectNode;
 import org.apache.http.HttpHost;
 import org.elasticsearch.client.RestClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.math.RoundingMode;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -46,40 +53,84 @@ import java.util.Scanner;
 import java.util.StringJoiner;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class EnterpriseySearcher {
 
     public static final ObjectMapper OBJECT_MAPPER = new ObjectMapper();
-    private static final HttpClient HTTP_CLIENT = HttpClient.newHttpClient();
-    private static String ENCODER_URL = System.getenv().getOrDefault("ENCODER_URL", "http://localhost:5555/encode_text");
-    private static final int TOP_K = 5;
+    // ENCODER_URL may list several encoder replicas, separated with commas
+    private static final String DEFAULT_ENCODER_URL = System.getenv().getOrDefault("ENCODER_URL", "http://localhost:5555/encode_text");
+    private static EncoderClient ENCODER = EncoderClient.forUrls(DEFAULT_ENCODER_URL);
+    static final int TOP_K = 5;
+    // fail fast, instead of piling requests onto a slow Elasticsearch or encoder
+    static final ResilientBackend ELASTICSEARCH_GUARD = ResilientBackend.withDefaults("elasticsearch", Duration.ofSeconds(5));
+    static final ResilientBackend ENCODER_GUARD = ResilientBackend.withDefaults("encoder", Duration.ofSeconds(10));
+    // the cached results aren't worth waiting longer for
+    private static final Duration GENERATION_LOOKUP_TIMEOUT = Duration.ofSeconds(1);
+    // whatever changes the results of the same query, must be part of the profile
+    static final String SEARCH_PROFILE = "hybrid[rrf.k=60, top=" + TOP_K + "]";
+    // near-duplicate queries ("apple", "Apfel", "pomme") share the kNN results, 5% of such hits are verified,
+    // with the random generator of whichever thread asks
+    static final SemanticQueryCache SEMANTIC_CACHE = new SemanticQueryCache(4096, 512,
+        Float.parseFloat(System.getenv().getOrDefault("SEMANTIC_CACHE_THRESHOLD", "0.95")), 0.05,
+        () -> ThreadLocalRandom.current().nextLong());
+    // when an index changes, the kNN results cached for it are dropped too
+    static final ResultCache RESULT_CACHE = new ResultCache(10_000, Duration.ofSeconds(1), System::nanoTime,
+        SEMANTIC_CACHE::invalidateIndex);
+    // the kNN candidates may be reranked with full precision embeddings, KNN_VECTOR_STORE is a bulk file with them
+    private static KnnReranker KNN_RERANKER = knnReranker(
+        Integer.parseInt(System.getenv().getOrDefault("KNN_RERANK_OVERSAMPLE", "1")), System.getenv("KNN_VECTOR_STORE"));
+    // the fused results may be diversified, MMR_LAMBDA below 1 turns it on, MMR_WINDOW fused candidates are considered
+    private static MmrDiversifier DIVERSIFIER = new MmrDiversifier(
+        Double.parseDouble(System.getenv().getOrDefault("MMR_LAMBDA", "1")),
+        Integer.parseInt(System.getenv().getOrDefault("MMR_WINDOW", "50")));
+    // the same product photo is encoded only once, whatever it's called
+    static final ImageEmbeddingCache IMAGE_CACHE = new ImageEmbeddingCache(1024);
+    // the paged searches in progress, kept as long as their points in time
+    static final CursorStore CURSORS = new CursorStore(PagedSearch.KEEP_ALIVE, System::nanoTime);
+    private static final Logger LOG = LoggerFactory.getLogger(EnterpriseySearcher.class);
 
     public static void main(String[] args) {
 //            List<String> queries = obtainQueries();
         List<String> queries = List.of("orange", "apple", "Heckscheibenwaschanlage", "computer", "basket");
 
-        try (RestClient restClient = RestClient.builder(HttpHost.create(System.getenv("ES_URL")))
-            .setDefaultHeaders(new org.apache.http.Header[]{
-                new org.apache.http.message.BasicHeader("Authorization", "ApiKey " + System.getenv("ES_API_KEY"))
-            })
-            .build()) {
+        try {
+            runCli(System.getenv("ES_URL"), System.getenv("ES_API_KEY"), queries, Channels.newChannel(System.out));
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /// Everything [#main(String\[\])] does, also used for training the AOT cache, see [StartupTraining].
+    static void runCli(String esUrl, String apiKey, List<String> queries, WritableByteChannel out) throws IOException {
+        try (RestClient restClient = restClient(esUrl, apiKey)) {
 
             JacksonJsonpMapper jsonpMapper = new JacksonJsonpMapper();
             ElasticsearchTransport transport = new RestClientTransport(restClient, jsonpMapper);
             ElasticsearchClient esClient = new ElasticsearchClient(transport);
 
-            runSearch(queries, esClient, "catalogue")
-                .forEach(System.out::println);
-
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+            new ResultRenderer().write(runSearch(queries, esClient, "catalogue"), ResultRenderer.Format.TEXT, out);
+            LOG.debug("Semantic query cache: {}", SEMANTIC_CACHE.stats());
         }
     }
 
+    static RestClient restClient(String url, String apiKey) {
+        return RestClient.builder(HttpHost.create(url))
+            .setDefaultHeaders(new org.apache.http.Header[]{
+                new org.apache.http.message.BasicHeader("Authorization", "ApiKey " + apiKey)
+            })
+            .build();
+    }
+
     static List<String> obtainQueries() {
         List<String> queries = new ArrayList<>();
         Scanner scanner = new Scanner(System.in);
@@ -95,10 +146,7 @@ public class EnterpriseySearcher {
     static List<SearchResult> runSearch(List<String> queries, ElasticsearchClient esClient, String indexName) {
         try (ExecutorService executor = Executors.newFixedThreadPool(5);) {
             List<CompletableFuture<SearchResult>> futures = queries.stream()
-                .map(query -> CompletableFuture.supplyAsync(() -> {
-                    QueryWithVector qwv = new QueryWithVector(query, obtainTextEmbedding(query));
-                    return executeSearch(qwv, indexName, esClient);
-                }, executor))
+                .map(query -> cachedSearch(query, indexName, esClient, executor))
                 .collect(Collectors.toList());
             return futures.stream()
                 .map(CompletableFuture::join)
@@ -106,28 +154,124 @@ public class EnterpriseySearcher {
         }
     }
 
+    static CompletableFuture<SearchResult> cachedSearch(String query, String indexName, ElasticsearchClient esClient, Executor executor) {
+        return cachedSearch(query, SearchFilter.NONE, indexName, esClient, executor);
+    }
+
+    /// Identical queries, also the concurrent ones, are searched for only once.
+    /// The index generation is checked on the executor, so an unhealthy cluster doesn't block the caller.
+    static CompletableFuture<SearchResult> cachedSearch(String query, SearchFilter filter, String indexName,
+                                                        ElasticsearchClient esClient, Executor executor) {
+        return RESULT_CACHE.get(
+                new ResultCache.Key(indexName, ResultCache.normalise(query), searchProfile(filter)),
+                index -> lookUpIndexGeneration(index, esClient, executor),
+                () -> search(query, filter, indexName, esClient, executor))
+            .thenApply(result -> result.withQuery(query));
+    }
+
+    static CompletableFuture<SearchResult> search(String query, String indexName, ElasticsearchClient esClient, Executor executor) {
+        return search(query, SearchFilter.NONE, indexName, esClient, executor);
+    }
+
+    static CompletableFuture<SearchResult> search(String query, SearchFilter filter, String indexName,
+                                                  ElasticsearchClient esClient, Executor executor) {
+        // the encoder calls don't occupy the executor, only the Elasticsearch part does
+        // when the encoder is unavailable, the vector is null and only the classic search is done
+        return obtainTextEmbedding(query)
+            .exceptionally(ResilientBackend.fallbackIfUnavailable(() -> null))
+            .thenApplyAsync(vector -> executeSearch(new QueryWithVector(query, vector, filter), indexName, esClient), executor);
+    }
+
+    /// Searches for items looking like the image, and matching the text too, unless it's `null`.
+    /// With text, the kNN search is done with the average of the normalised image and text vectors,
+    /// and the classic search with the text; without, there's only the kNN search.
+    /// The results are labelled with the name of the image, and the text, if any.
+    /// The image is hashed by the calling thread, to look its embedding up in the [#IMAGE_CACHE].
+    static CompletableFuture<SearchResult> searchByImage(ImageSource image, String text, SearchFilter filter, String indexName,
+                                                         ElasticsearchClient esClient, Executor executor) {
+        // without the image there's nothing to search for, without the text there's still the image
+        CompletableFuture<float[]> imageVector = obtainImageEmbedding(image);
+        CompletableFuture<float[]> textVector = text == null
+            ? CompletableFuture.completedFuture(null)
+            : obtainTextEmbedding(text).exceptionally(ResilientBackend.fallbackIfUnavailable(() -> null));
+        String label = text == null ? image.name() : image.name() + " + " + text;
+        return imageVector.thenCombine(textVector, EnterpriseySearcher::imageAndTextVector)
+            .thenApplyAsync(vector -> executeSearch(new QueryWithVector(text, vector, filter), label, indexName, esClient), executor);
+    }
+
+    /// The first page of the hybrid search results, with the cursor to the next one, unless that was all.
+    /// The pages aren't cached, and the kNN results aren't reranked.
+    /// The searches of this and the next pages run on the `executor`.
+    static SearchResult searchFirstPage(String query, SearchFilter filter, int pageSize, String indexName,
+                                        ElasticsearchClient esClient, Executor executor) throws IOException {
+        // when the encoder is unavailable, the vector is null and only the classic search is done
+        float[] vector = obtainTextEmbedding(query)
+            .exceptionally(ResilientBackend.fallbackIfUnavailable(() -> null))
+            .join();
+        return nextPage(PagedSearch.open(new QueryWithVector(query, vector, filter), pageSize, indexName, esClient, executor));
+    }
+
+    /// The page after the one the `cursor` came with, the cursor can't be used again.
+    static SearchResult searchNextPage(String cursor) throws IOException {
+        return nextPage(CURSORS.take(cursor));
+    }
+
+    private static SearchResult nextPage(PagedSearch search) throws IOException {
+        SearchResult page;
+        try {
+            page = search.nextPage(null);
+        } catch (IOException | RuntimeException e) {
+            search.close();
+            throw e;
+        }
+        if (search.hasEnded()) {
+            search.close();
+            return page;
+        }
+        return page.withCursor(CURSORS.register(search));
+    }
+
+    static String searchProfile(SearchFilter filter) {
+        String profile = KNN_RERANKER.enabled() ? SEARCH_PROFILE + " " + KNN_RERANKER.profile() : SEARCH_PROFILE;
+        profile = DIVERSIFIER.enabled() ? profile + " " + DIVERSIFIER.profile() : profile;
+        return filter.equals(SearchFilter.NONE) ? profile : profile + " " + filter.profile();
+    }
+
     static SearchResult executeSearch(QueryWithVector qwv,
                                       String indexName,
                                       ElasticsearchClient esClient) {
+        return executeSearch(qwv, qwv.getQuery(), indexName, esClient);
+    }
 
-        // kick off both searches on ForkJoinPool.commonPool()
-        CompletableFuture<List<CatalogueItem>> knnSearchFuture =
-            CompletableFuture.supplyAsync(() -> {
-                try {
-                    return performKnnSearch(qwv.getVector(), indexName, esClient);
-                } catch (IOException e) {
-                    throw new CompletionException(e);
-                }
-            });
+    /// The result, and the failure when no search could be run, tell the query by its `label`,
+    /// e.g. the name of the image searched by, which has no text query.
+    static SearchResult executeSearch(QueryWithVector qwv,
+                                      String label,
+                                      String indexName,
+                                      ElasticsearchClient esClient) {
 
-        CompletableFuture<List<CatalogueItem>> classicSearchFuture =
-            CompletableFuture.supplyAsync(() -> {
+        // when diversifying, both legs retrieve the wider window, and the embeddings of the candidates are needed:
+        // from the local vector store, or fetched with the hits
+        MmrDiversifier diversifier = DIVERSIFIER;
+        int window = diversifier.window(TOP_K);
+        Map<String, float[]> embeddings = diversifier.enabled() && !KNN_RERANKER.hasLocalVectors() ? new ConcurrentHashMap<>() : null;
+
+        // kick off both searches on ForkJoinPool.commonPool()
+        // a leg which can't be run right now is skipped, its result is null
+        CompletableFuture<List<CatalogueItem>> knnSearchFuture = knnSearchOrCached(qwv.getVector(), qwv.getFilter(), window, embeddings,
+            indexName, esClient);
+
+        // an image query may come without text, then there's no classic search to run
+        int legs = qwv.getQuery() == null ? 1 : 2;
+        CompletableFuture<List<CatalogueItem>> classicSearchFuture = qwv.getQuery() == null
+            ? CompletableFuture.completedFuture(null)
+            : ELASTICSEARCH_GUARD.call(() -> CompletableFuture.supplyAsync(() -> {
                 try {
-                    return performClassicSearch(qwv.getQuery(), indexName, esClient);
+                    return performClassicSearch(qwv.getQuery(), qwv.getFilter(), window, embeddings, indexName, esClient);
                 } catch (IOException e) {
                     throw new CompletionException(e);
                 }
-            });
+            }), () -> null);
 
         // remember to cancel a future if the other one fails
         Function<Throwable, List<CatalogueItem>> cancelOther = ex -> {
@@ -140,120 +284,286 @@ public class EnterpriseySearcher {
         classicSearchFuture.exceptionally(cancelOther);
 
         return knnSearchFuture.thenCombine(classicSearchFuture, (k, c) -> {
-                var combined = combineUsingRRF(Arrays.asList(k, c), 60, TOP_K);
-                return new SearchResult(qwv.getQuery(), combined);
+                List<List<CatalogueItem>> available = Stream.of(k, c).filter(Objects::nonNull).toList();
+                if (available.isEmpty()) {
+                    throw new BackendUnavailableException("No search could be run for: " + label);
+                }
+                var fused = combineUsingRRF(available, 60, window);
+                var combined = diversifier.enabled()
+                    ? diversifier.diversify(fused, embeddings != null ? embeddings::get : KNN_RERANKER::localVector, TOP_K)
+                    : fused;
+                return new SearchResult(label, combined, available.size() < legs);
             })
             // waits, re‑throws on first failure
             .join();
     }
 
-    static List<Float> obtainTextEmbedding(String text) {
-        try {
-            ObjectNode requestBody = OBJECT_MAPPER.createObjectNode();
-            requestBody.put("text", text);
+    /// Drops the cached results containing the document, from all the caches, e.g. right after a price update.
+    static void invalidateFullPath(String fullPath) {
+        RESULT_CACHE.invalidateFullPath(fullPath);
+        SEMANTIC_CACHE.invalidateFullPath(fullPath);
+    }
+
+    /// Drops the cached results of the index, from all the caches, e.g. after a bulk import.
+    static void invalidateIndex(String indexName) {
+        RESULT_CACHE.invalidateIndex(indexName);
+        SEMANTIC_CACHE.invalidateIndex(indexName);
+    }
 
-            HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create(ENCODER_URL))
-                .header("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
-                .build();
+    /// The `k` nearest neighbours, unless a semantically similar query has been answered already
+    /// in the current generation of the index; when that can't be told, the cache isn't used.
+    /// Completes with `null` when there's no vector or Elasticsearch is unavailable.
+    /// When the `embeddings` of the hits are needed, the kNN search is always done, as the cache doesn't keep them.
+    static CompletableFuture<List<CatalogueItem>> knnSearchOrCached(float[] vector, SearchFilter filter, int k,
+                                                                    Map<String, float[]> embeddings, String indexName,
+                                                                    ElasticsearchClient esClient) {
+        if (vector == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        if (embeddings != null) {
+            return asyncKnnSearch(vector, filter, k, embeddings, indexName, esClient)
+                .exceptionally(ResilientBackend.fallbackIfUnavailable(() -> null));
+        }
+        String profile = searchProfile(filter);
+        return RESULT_CACHE.currentGeneration(indexName, index -> lookUpIndexGeneration(index, esClient, ForkJoinPool.commonPool()))
+            .thenCompose(generation -> {
+                if (generation == ResultCache.UNKNOWN_GENERATION) {
+                    return asyncKnnSearch(vector, filter, k, null, indexName, esClient);
+                }
+                List<CatalogueItem> cached = SEMANTIC_CACHE.lookup(indexName, generation, profile, vector);
+                if (cached != null) {
+                    if (SEMANTIC_CACHE.shouldVerify()) {
+                        // verification is best effort and nobody waits for it
+                        asyncKnnSearch(vector, filter, k, null, indexName, esClient)
+                            .thenAccept(actual -> SEMANTIC_CACHE.recordVerification(cached, actual));
+                    }
+                    return CompletableFuture.completedFuture(cached);
+                }
+                return asyncKnnSearch(vector, filter, k, null, indexName, esClient)
+                    .thenApply(found -> {
+                        SEMANTIC_CACHE.put(indexName, generation, profile, vector, found);
+                        return found;
+                    });
+            })
+            .exceptionally(ResilientBackend.fallbackIfUnavailable(() -> null));
+    }
 
-            HttpResponse<String> response = HTTP_CLIENT.send(request, HttpResponse.BodyHandlers.ofString());
+    /// The generation of the index, looked up on the `executor`, and not guarded like the searches:
+    /// when it can't be looked up, e.g. the API key may only search, the caches are bypassed,
+    /// but that mustn't open the breaker of the searches.
+    private static CompletableFuture<Long> lookUpIndexGeneration(String indexName, ElasticsearchClient esClient, Executor executor) {
+        return CompletableFuture.supplyAsync(() -> indexGeneration(esClient, indexName), executor)
+            .orTimeout(GENERATION_LOOKUP_TIMEOUT.toMillis(), TimeUnit.MILLISECONDS);
+    }
 
-            if (response.statusCode() != 200) {
-                throw new IOException("Failed to encode text. Status code: [%d], Response: [%s]"
-                    .formatted(response.statusCode(), response.body()));
+    private static CompletableFuture<List<CatalogueItem>> asyncKnnSearch(float[] vector, SearchFilter filter, int k,
+                                                                        Map<String, float[]> embeddings, String indexName,
+                                                                        ElasticsearchClient esClient) {
+        return ELASTICSEARCH_GUARD.call(() -> CompletableFuture.supplyAsync(() -> {
+            try {
+                return performKnnSearch(vector, filter, k, (int) (1.5 * KNN_RERANKER.candidates(k)), embeddings, indexName, esClient);
+            } catch (IOException e) {
+                throw new CompletionException(e);
             }
+        }));
+    }
 
-            EmbeddingResponse embeddingResponse = OBJECT_MAPPER.readValue(response.body(), EmbeddingResponse.class);
-            if (embeddingResponse.success()) {
-                return embeddingResponse.embedding();
-            }
-            throw new IOException("Encoding operation failed: " + response.body());
+    static CompletableFuture<float[]> obtainTextEmbedding(String text) {
+        return ENCODER_GUARD.call(() -> ENCODER.encodeText(text));
+    }
 
-        } catch (IOException | InterruptedException e) {
-            throw new RuntimeException(e);
+    /// The embedding of the image, encoded only when the [#IMAGE_CACHE] doesn't have it yet.
+    static CompletableFuture<float[]> obtainImageEmbedding(ImageSource image) {
+        String contentHash;
+        try {
+            contentHash = image.contentHash();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
         }
+        return IMAGE_CACHE.get(contentHash, () -> ENCODER_GUARD.call(() -> ENCODER.encodeImage(image)));
+    }
+
+    /// The image vector when there's no text vector, otherwise the average of both, normalised,
+    /// so that neither dominates just because it's longer.
+    static float[] imageAndTextVector(float[] imageVector, float[] textVector) {
+        if (textVector == null) {
+            return imageVector;
+        }
+        float[] average = VectorSimilarity.normalised(imageVector);
+        VectorSimilarity.average(average, VectorSimilarity.normalised(textVector), average);
+        return average;
     }
 
     static List<CatalogueItem> performClassicSearch(String searchText, String indexName, ElasticsearchClient esClient) throws IOException {
+        return performClassicSearch(searchText, SearchFilter.NONE, indexName, esClient);
+    }
+
+    static List<CatalogueItem> performClassicSearch(String searchText, SearchFilter filter, String indexName,
+                                                    ElasticsearchClient esClient) throws IOException {
+        return performClassicSearch(searchText, filter, TOP_K, null, indexName, esClient);
+    }
+
+    /// The top `size` hits, their embeddings are put into `embeddings`, unless it's `null`.
+    static List<CatalogueItem> performClassicSearch(String searchText, SearchFilter filter, int size, Map<String, float[]> embeddings,
+                                                    String indexName, ElasticsearchClient esClient) throws IOException {
         try {
             // First, check if the index exists
             checkTheIndexExists(esClient, indexName);
 
-            // Build and execute the search request with a wildcard query to check if the filename contains searchText
-            SearchResponse<CatalogueItem> response = esClient.search(s -> s
+            List<String> fields = embeddings != null
+                ? List.of("filename", "full-path", "price", "embedding")
+                : List.of("filename", "full-path", "price");
+            SearchResponse<CatalogueDocument> response = esClient.search(s -> s
                     .index(indexName)
-                    .query(q -> q
-                        .wildcard(w -> w
-                            .field("filename")
-                            .wildcard("*" + searchText + "*")
-                        )
-                    )
-                    .size(TOP_K)
-                    .source(src -> src.filter(f -> f.includes("filename", "full-path", "price"))),
-                CatalogueItem.class);
-
-            return response.hits().hits().stream().map(Hit::source).toList();
+                    .query(classicQuery(searchText, filter))
+                    .size(size)
+                    .source(src -> src.filter(f -> f.includes(fields))),
+                CatalogueDocument.class);
+
+            List<CatalogueDocument> hits = response.hits().hits().stream().map(Hit::source).toList();
+            collectEmbeddings(hits, embeddings);
+            return hits.stream().map(CatalogueDocument::item).toList();
 
         } catch (Exception e) {
             throw new IOException("Failed to perform BM25 search: " + e.getMessage(), e);
         }
     }
 
+    /// A wildcard query to check if the filename contains searchText
+    static Query classicQuery(String searchText, SearchFilter filter) {
+        Query wildcard = Query.of(q -> q
+            .wildcard(w -> w
+                .field("filename")
+                .wildcard("*" + searchText + "*")
+            )
+        );
+        // the price filter doesn't affect the scoring
+        return filter.toQuery()
+            .map(priceFilter -> Query.of(q -> q.bool(b -> b.must(wildcard).filter(priceFilter))))
+            .orElse(wildcard);
+    }
+
     /// Runs the vector search
     /// [See more](https://www.elastic.co/docs/solutions/search/vector/knn)
-    static List<CatalogueItem> performKnnSearch(List<Float> queryVector, String indexName, ElasticsearchClient esClient) throws IOException {
+    static List<CatalogueItem> performKnnSearch(float[] queryVector, String indexName, ElasticsearchClient esClient) throws IOException {
+        return performKnnSearch(queryVector, SearchFilter.NONE, indexName, esClient);
+    }
+
+    /// Only the items passing the `filter` are considered as the nearest neighbours,
+    /// the filter is applied during the approximate kNN search, not after it.
+    static List<CatalogueItem> performKnnSearch(float[] queryVector, SearchFilter filter, String indexName,
+                                                ElasticsearchClient esClient) throws IOException {
+        // Set the number of desired nearest neighbors (k) and candidate oversampling factor
+        int k = 5;
+        return performKnnSearch(queryVector, filter, k, (int) (1.5 * KNN_RERANKER.candidates(k)), indexName, esClient);
+    }
+
+    /// With the number of nearest neighbours `k` and of the candidates considered per shard, `numCandidates`, given explicitly.
+    /// The latter is raised to the number of retrieved hits, when reranking needs more of them.
+    static List<CatalogueItem> performKnnSearch(float[] queryVector, SearchFilter filter, int k, int numCandidates,
+                                                String indexName, ElasticsearchClient esClient) throws IOException {
+        return performKnnSearch(queryVector, filter, k, numCandidates, null, indexName, esClient);
+    }
+
+    /// The embeddings of the hits are put into `embeddings`, unless it's `null`.
+    static List<CatalogueItem> performKnnSearch(float[] queryVector, SearchFilter filter, int k, int numCandidates,
+                                                Map<String, float[]> embeddings, String indexName,
+                                                ElasticsearchClient esClient) throws IOException {
         try {
             // First, check if the index exists
             checkTheIndexExists(esClient, indexName);
 
-            // Set the number of desired nearest neighbors (k) and candidate oversampling factor
-            int k = 5;
-            int numCandidates = (int) (1.5 * k);
+            // when reranking, more candidates are retrieved, and reordered with the exact similarity
+            KnnReranker reranker = KNN_RERANKER;
+            int retrieved = reranker.enabled() ? reranker.candidates(k) : k;
+            int considered = Math.max(numCandidates, retrieved);
+            List<String> fields = reranker.needsSourceEmbeddings() || embeddings != null
+                ? List.of("filename", "full-path", "price", "embedding")
+                : List.of("filename", "full-path", "price");
 
             // Build and execute the search request.
             // Note: The knn clause is added via the .knn() method.
-            SearchResponse<CatalogueItem> response = esClient.search(s -> s
+            SearchResponse<CatalogueDocument> response = esClient.search(s -> s
                     .index(indexName)
-                    .knn(knn -> knn
-                        .field("embedding")
-                        .queryVector(queryVector)
-                        .k(k)
-                        .numCandidates(numCandidates)
-                    )
+                    .knn(knn -> {
+                        knn
+                            .field("embedding")
+                            .queryVector(asFloatList(queryVector))
+                            .k(retrieved)
+                            .numCandidates(considered);
+                        filter.toQuery().ifPresent(knn::filter);
+                        return knn;
+                    })
                     // Also set the size of the search response to k
-                    .size(k)
-                    .source(src -> src.filter(f -> f.includes("filename", "full-path", "price"))),
-                CatalogueItem.class);
+                    .size(retrieved)
+                    .source(src -> src.filter(f -> f.includes(fields))),
+                CatalogueDocument.class);
 
-            return response.hits().hits().stream().map(Hit::source).toList();
+            List<CatalogueDocument> candidates = response.hits().hits().stream().map(Hit::source).toList();
+            collectEmbeddings(candidates, embeddings);
+            return reranker.enabled()
+                ? reranker.rerank(queryVector, candidates, k)
+                : candidates.stream().map(CatalogueDocument::item).toList();
 
         } catch (Exception e) {
             throw new IOException("Failed to perform search: " + e.getMessage(), e);
         }
     }
 
+    /// Changes whenever documents of the index are indexed, updated, deleted or refreshed.
+    /// Used to tell whether cached results are still valid.
+    static long indexGeneration(ElasticsearchClient esClient, String indexName) {
+        try {
+            IndexStats primaries = esClient.indices().stats(s -> s.index(indexName).metric("indexing", "refresh"))
+                .all().primaries();
+            return primaries.indexing().indexTotal() + primaries.indexing().deleteTotal() + primaries.refresh().externalTotal();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static void collectEmbeddings(List<CatalogueDocument> hits, Map<String, float[]> embeddings) {
+        if (embeddings == null) {
+            return;
+        }
+        for (CatalogueDocument hit : hits) {
+            if (hit.embedding() != null) {
+                embeddings.put(hit.fullPath(), hit.embedding());
+            }
+        }
+    }
+
     static void checkTheIndexExists(ElasticsearchClient esClient, String indexName) throws IOException {
         boolean indexExists = esClient.indices().exists(e -> e.index(indexName)).value();
         if (!indexExists) {
-            throw new IOException("Index '" + indexName + "' does not exist");
+            throw new BackendResponseException(404, "Index '" + indexName + "' does not exist");
         }
     }
 
     /// Merges results of various search algorithms
     /// [See more](https://www.elastic.co/docs/reference/elasticsearch/rest-apis/reciprocal-rank-fusion)
     static List<CatalogueItem> combineUsingRRF(List<List<CatalogueItem>> searchResults, int k, int rankWindowSize) {
+        return combineUsingRRF(searchResults, Collections.nCopies(searchResults.size(), 1.0), k, rankWindowSize);
+    }
+
+    /// The score of each item of a list is multiplied by the weight of the list, e.g. to prefer the results of one cluster.
+    static List<CatalogueItem> combineUsingRRF(List<List<CatalogueItem>> searchResults, List<Double> weights,
+                                               int k, int rankWindowSize) {
+        if (weights.size() != searchResults.size()) {
+            throw new IllegalArgumentException(weights.size() + " weights for " + searchResults.size() + " result lists");
+        }
         // Create a map to store all unique items and their RRF scores
         Map<String, CatalogueItem> itemMap = new HashMap<>();
         Map<String, Double> rrfScores = new HashMap<>();
 
         // Process all search results
-        for (List<CatalogueItem> resultList : searchResults) {
+        for (int list = 0; list < searchResults.size(); list++) {
+            List<CatalogueItem> resultList = searchResults.get(list);
+            double weight = weights.get(list);
             for (int i = 0; i < resultList.size(); i++) {
                 CatalogueItem item = resultList.get(i);
                 int rank = i + 1; // Ranks start from 1
-                double score = 1.0 / (k + rank);
+                double score = weight / (k + rank);
 
                 itemMap.put(item.fullPath(), item);
                 // Add to existing score if item already exists, otherwise set a new score
@@ -268,87 +578,208 @@ public class EnterpriseySearcher {
             .toList();
     }
 
-    // Allow setting the encoder URL for testing
+    static List<Float> asFloatList(float[] vector) {
+        List<Float> list = new ArrayList<>(vector.length);
+        for (float v : vector) {
+            list.add(v);
+        }
+        return list;
+    }
+
+    // Allow setting the encoder URL (or a comma-separated list of URLs) for testing
     public static void setEncoderUrl(String url) {
-        ENCODER_URL = url;
+        ENCODER = EncoderClient.forUrls(url);
+    }
+
+    // Allow tests to leave no trace: the default encoder, empty caches, and guards which haven't seen any call
+    static void resetState() {
+        setEncoderUrl(DEFAULT_ENCODER_URL);
+        ELASTICSEARCH_GUARD.reset();
+        ENCODER_GUARD.reset();
+        RESULT_CACHE.clear();
+        SEMANTIC_CACHE.clear();
+        IMAGE_CACHE.clear();
+    }
+
+    static void setDiversifier(MmrDiversifier diversifier) {
+        DIVERSIFIER = diversifier;
+    }
+
+    static void setKnnReranker(KnnReranker reranker) {
+        KNN_RERANKER = reranker;
+    }
+
+    static KnnReranker knnReranker(int oversample, String vectorStore) {
+        try {
+            return vectorStore == null
+                ? new KnnReranker(oversample, Map.of())
+                : KnnReranker.withLocalVectors(oversample, Path.of(vectorStore));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to read the vector store: " + vectorStore, e);
+        }
     }
 }
 
 final class QueryWithVector {
     private final String query;
-    private final List<Float> vector;
+    private final float[] vector;
+    private final SearchFilter filter;
+
+    QueryWithVector(String query, float[] vector) {
+        this(query, vector, SearchFilter.NONE);
+    }
 
-    QueryWithVector(String query, List<Float> vector) {
+    QueryWithVector(String query, float[] vector, SearchFilter filter) {
         this.query = query;
         this.vector = vector;
+        this.filter = filter;
     }
 
     @Override
     public String toString() {
         return "QueryWithVector[" +
             "query=" + query + ", " +
-            "vector=" + vector + ']';
+            "vector=" + Arrays.toString(vector) + ", " +
+            "filter=" + filter + ']';
     }
 
     public String getQuery() {
         return query;
     }
 
-    public List<Float> getVector() {
+    public float[] getVector() {
         return vector;
     }
 
+    public SearchFilter getFilter() {
+        return filter;
+    }
+
     @Override
     public boolean equals(Object obj) {
         if (obj == this) return true;
         if (obj == null || obj.getClass() != this.getClass()) return false;
         var that = (QueryWithVector) obj;
         return Objects.equals(this.query, that.query) &&
-            Objects.equals(this.vector, that.vector);
+            Arrays.equals(this.vector, that.vector) &&
+            Objects.equals(this.filter, that.filter);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(query, vector);
+        return 31 * (31 * Objects.hashCode(query) + Arrays.hashCode(vector)) + Objects.hashCode(filter);
     }
 
 }
 
-record Price(BigDecimal value, String currency) {
+/// A price in minor units (cents), rounded half up, the way the `price.value` `scaled_float` field stores it.
+record Price(@JsonIgnore long cents, String currency) {
+
+    static final int SCALE = 2;
+
+    Price(BigDecimal value, String currency) {
+        this(toCents(value), currency);
+    }
+
+    @JsonCreator
+    static Price fromJson(@JsonProperty("value") BigDecimal value, @JsonProperty("currency") String currency) {
+        // a price without a value is no price at all
+        return value == null ? null : new Price(value, currency);
+    }
+
+    static long toCents(BigDecimal value) {
+        return value.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+    }
+
+    @JsonProperty("value")
+    BigDecimal value() {
+        return BigDecimal.valueOf(cents, SCALE);
+    }
+
+    /// Appends the same text as [#toString()], e.g. `12.30 USD`, without allocating.
+    StringBuilder appendTo(StringBuilder out) {
+        return appendValueTo(out).append(' ').append(currency);
+    }
+
+    /// Appends the value with two decimal places, e.g. `12.30`.
+    StringBuilder appendValueTo(StringBuilder out) {
+        long units = cents / 100;
+        long fraction = cents % 100;
+        if (cents < 0) {
+            out.append('-');
+            units = -units;
+            fraction = -fraction;
+        }
+        return out.append(units).append('.').append((char) ('0' + fraction / 10)).append((char) ('0' + fraction % 10));
+    }
+
     @Override
     public String toString() {
-        return value.setScale(2, RoundingMode.HALF_UP).toPlainString() + " " + currency;
+        return appendTo(new StringBuilder(24)).toString();
     }
 }
 
 record CatalogueItem(String filename, @JsonProperty("full-path") String fullPath, Price price) {
     public String toPriceString() {
-        return String.format("%s (%s)", filename, formatPrice());
+        return appendPriceStringTo(new StringBuilder(64)).toString();
     }
 
-    private String formatPrice() {
+    /// Appends the same text as [#toPriceString()], e.g. `apple.jpg (12.30 USD)`, without allocating.
+    StringBuilder appendPriceStringTo(StringBuilder out) {
+        out.append(filename).append(" (");
         if (price == null) {
-            return "priceless";
+            out.append("priceless");
         } else {
-            return price.toString();
+            price.appendTo(out);
         }
+        return out.append(')');
     }
 }
 
-record SearchResult(String query, List<CatalogueItem> items) {
+/// `partial` is set when not all searches could be run, e.g. because a backend was unavailable.
+/// `cursor` is the token to get the next page with, when the results are paged and there are more of them.
+record SearchResult(String query, List<CatalogueItem> items, boolean partial, String cursor) {
+    SearchResult(String query, List<CatalogueItem> items) {
+        this(query, items, false);
+    }
+
+    SearchResult(String query, List<CatalogueItem> items, boolean partial) {
+        this(query, items, partial, null);
+    }
+
+    SearchResult withQuery(String query) {
+        return query.equals(this.query) ? this : new SearchResult(query, items, partial, cursor);
+    }
+
+    SearchResult withCursor(String cursor) {
+        return new SearchResult(query, items, partial, cursor);
+    }
+
+    /// Appends the same text as [#toString()] without allocating, see [ResultRenderer] for rendering many results.
+    StringBuilder appendTo(StringBuilder out) {
+        out.append(query).append(": [");
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                out.append(", ");
+            }
+            items.get(i).appendPriceStringTo(out);
+        }
+        return out.append(']');
+    }
+
     @Override
     public String toString() {
-        return String.format("%s: %s", query, items().stream().map(CatalogueItem::toPriceString).toList());
+        return appendTo(new StringBuilder(64 * (items.size() + 1))).toString();
     }
 }
 
-record EmbeddingResponse(boolean success, int dimensions, List<Float> embedding) {
+record EmbeddingResponse(boolean success, int dimensions, float[] embedding) {
     @Override
     public String toString() {
         return new StringJoiner(", ", EmbeddingResponse.class.getSimpleName() + "[", "]")
             .add("success=" + success)
             .add("dimensions=" + dimensions)
-            .add("embedding=" + embedding.subList(0, Math.min(embedding.size(), 5)))
+            .add("embedding=" + Arrays.toString(Arrays.copyOf(embedding, Math.min(embedding.length, 5))))
             .toString();
     }
 }
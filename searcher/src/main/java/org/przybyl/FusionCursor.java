@@ -0,0 +1,236 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/// Reciprocal Rank Fusion of ranked lists which are fetched in batches, page by page, like [EnterpriseySearcher#combineUsingRRF].
+///
+/// An item is returned only once its RRF score can't be beaten anymore: by the items seen so far, even if they turn up
+/// in the lists they haven't been seen in yet, and by the items not seen at all, which can rank only below the fetched ones.
+/// So the pages are in the same order as if the complete lists were fused at once, but only as much of the lists
+/// is fetched as needed to return the next page, and the lists are never fetched again from the start.
+/// For the first page that's about `rankConstant` items of each list, later pages need about as many as they return.
+/// When the lists hardly overlap, an item can be returned only once the other lists have ended,
+/// so, like `rank_window_size` of the Elasticsearch `rrf` retriever, only the top `rankWindow` items of each list are fused.
+///
+/// The legs are fetched on the given executor, through the guard of their backend.
+/// When a leg fails, the batches the other legs fetched are kept, and so is a batch which arrives after its leg timed out,
+/// so the cursor can be asked again, as long as a leg which fails doesn't move past the batch it failed to return.
+///
+/// Not thread-safe.
+final class FusionCursor {
+
+    /// A ranked list, e.g. one leg of the hybrid search.
+    interface Leg {
+        /// The next at most `size` items, fewer only when the list ends.
+        List<CatalogueItem> next(int size) throws IOException;
+    }
+
+    private static final class Fused {
+        final CatalogueItem item;
+        final boolean[] seenIn;
+        double score;
+
+        Fused(CatalogueItem item, int legs) {
+            this.item = item;
+            this.seenIn = new boolean[legs];
+        }
+    }
+
+    private final List<Leg> legs;
+    private final int rankConstant;
+    private final int rankWindow;
+    private final int batchSize;
+    private final ResilientBackend guard;
+    private final Executor executor;
+    private final int[] depths;
+    private final boolean[] ended;
+    // the latest batch of each leg, until it's merged
+    private final List<CompletableFuture<List<CatalogueItem>>> unmerged;
+    // seen, but not returned yet, in the order they were seen in
+    private final Map<String, Fused> pending = new LinkedHashMap<>();
+    private final Set<String> returned = new HashSet<>();
+
+    FusionCursor(List<Leg> legs, int rankConstant, int rankWindow, int batchSize, ResilientBackend guard, Executor executor) {
+        this.legs = List.copyOf(legs);
+        this.rankConstant = rankConstant;
+        this.rankWindow = rankWindow;
+        this.batchSize = batchSize;
+        this.guard = guard;
+        this.executor = executor;
+        this.depths = new int[legs.size()];
+        this.ended = new boolean[legs.size()];
+        this.unmerged = new ArrayList<>(Collections.nCopies(legs.size(), null));
+    }
+
+    /// The next at most `size` items, fewer only when all the lists have been returned.
+    List<CatalogueItem> next(int size) throws IOException {
+        List<CatalogueItem> page = new ArrayList<>(size);
+        while (page.size() < size) {
+            Fused best = certainlyBest();
+            if (best != null) {
+                pending.remove(best.item.fullPath());
+                returned.add(best.item.fullPath());
+                page.add(best.item);
+            } else if (hasEnded()) {
+                break;
+            } else {
+                fetch();
+            }
+        }
+        return page;
+    }
+
+    /// Whether there are no more items.
+    boolean hasEnded() {
+        if (!pending.isEmpty()) {
+            return false;
+        }
+        for (boolean legEnded : ended) {
+            if (!legEnded) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /// The pending item with the highest score, if no other item can score higher.
+    private Fused certainlyBest() {
+        Fused best = null;
+        for (Fused fused : pending.values()) {
+            if (best == null || fused.score > best.score) {
+                best = fused;
+            }
+        }
+        if (best == null) {
+            return null;
+        }
+        double unseenBound = 0;
+        for (int leg = 0; leg < legs.size(); leg++) {
+            unseenBound += bound(leg);
+        }
+        if (unseenBound > best.score) {
+            return null;
+        }
+        for (Fused other : pending.values()) {
+            if (other != best && upperBound(other) > best.score) {
+                return null;
+            }
+        }
+        return best;
+    }
+
+    private double upperBound(Fused fused) {
+        double bound = fused.score;
+        for (int leg = 0; leg < legs.size(); leg++) {
+            if (!fused.seenIn[leg]) {
+                bound += bound(leg);
+            }
+        }
+        return bound;
+    }
+
+    // the most an item can still get from the leg, ranked right after the fetched ones
+    private double bound(int leg) {
+        return ended[leg] ? 0 : 1.0 / (rankConstant + depths[leg] + 1);
+    }
+
+    // the legs are fetched in parallel, like the searches of EnterpriseySearcher#executeSearch,
+    // a failed leg doesn't discard the batches of the others, which have already moved past them
+    private void fetch() throws IOException {
+        List<CompletableFuture<List<CatalogueItem>>> batches = new ArrayList<>(legs.size());
+        for (int leg = 0; leg < legs.size(); leg++) {
+            batches.add(ended[leg] ? null : nextBatch(leg));
+        }
+        IOException failure = null;
+        for (int leg = 0; leg < legs.size(); leg++) {
+            if (batches.get(leg) == null) {
+                continue;
+            }
+            try {
+                merge(leg, batches.get(leg).join());
+                unmerged.set(leg, null);
+            } catch (CompletionException e) {
+                IOException legFailure = e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+                if (failure == null) {
+                    failure = legFailure;
+                } else {
+                    failure.addSuppressed(legFailure);
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // the batch the leg returned after its previous fetch had failed, e.g. timed out, or the next one
+    private CompletableFuture<List<CatalogueItem>> nextBatch(int leg) {
+        CompletableFuture<List<CatalogueItem>> previous = unmerged.get(leg);
+        if (previous != null && !previous.isDone()) {
+            return CompletableFuture.failedFuture(new IOException("The previous batch of leg " + leg + " is still being fetched"));
+        }
+        if (previous != null && !previous.isCompletedExceptionally()) {
+            return previous;
+        }
+        Leg current = legs.get(leg);
+        int size = batchSize(leg);
+        return guard.call(() -> {
+            CompletableFuture<List<CatalogueItem>> batch = CompletableFuture.supplyAsync(() -> {
+                try {
+                    return current.next(size);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+            unmerged.set(leg, batch);
+            return batch;
+        });
+    }
+
+    // the depth of the leg changes only when its batch is merged, so it's also the size the batch was asked for
+    private int batchSize(int leg) {
+        return Math.min(batchSize, rankWindow - depths[leg]);
+    }
+
+    private void merge(int leg, List<CatalogueItem> batch) {
+        int requested = batchSize(leg);
+        for (CatalogueItem item : batch) {
+            int rank = ++depths[leg];
+            if (returned.contains(item.fullPath())) {
+                continue;
+            }
+            Fused fused = pending.computeIfAbsent(item.fullPath(), _ -> new Fused(item, legs.size()));
+            if (!fused.seenIn[leg]) {
+                fused.seenIn[leg] = true;
+                fused.score += 1.0 / (rankConstant + rank);
+            }
+        }
+        ended[leg] = batch.size() < requested || depths[leg] >= rankWindow;
+    }
+}
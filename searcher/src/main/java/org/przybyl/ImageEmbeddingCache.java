@@ -0,0 +1,91 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.util.LinkedHashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/// Cache of image embeddings by the SHA-256 of the image, see [ImageSource#contentHash()],
+/// so searching with the same product photo again, under whatever name, doesn't encode it again.
+///
+/// Entries hold the future embedding, so concurrent lookups of the same image are coalesced into a single encoding.
+/// The least recently used entries are evicted once `maxEntries` is exceeded, failed encodings are never kept.
+/// The embeddings are shared, so they mustn't be changed.
+final class ImageEmbeddingCache {
+
+    record Stats(long hits, long misses) {
+    }
+
+    private final int maxEntries;
+    // guarded by this
+    private final LinkedHashMap<String, CompletableFuture<float[]>> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ImageEmbeddingCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    /// Returns the cached embedding of the image, or the result of `encode`, which is then cached.
+    CompletableFuture<float[]> get(String contentHash, Supplier<CompletableFuture<float[]>> encode) {
+        CompletableFuture<float[]> cached;
+        CompletableFuture<float[]> own = new CompletableFuture<>();
+        synchronized (this) {
+            cached = entries.putIfAbsent(contentHash, own);
+            if (cached == null && entries.size() > maxEntries) {
+                entries.pollFirstEntry();
+            }
+        }
+        if (cached != null) {
+            hits.increment();
+            return cached;
+        }
+        misses.increment();
+        CompletableFuture<float[]> encoding;
+        try {
+            encoding = encode.get();
+        } catch (RuntimeException e) {
+            encoding = CompletableFuture.failedFuture(e);
+        }
+        encoding.whenComplete((embedding, ex) -> {
+            if (ex == null) {
+                own.complete(embedding);
+            } else {
+                synchronized (this) {
+                    entries.remove(contentHash, own);
+                }
+                own.completeExceptionally(ex);
+            }
+        });
+        return own;
+    }
+
+    Stats stats() {
+        return new Stats(hits.sum(), misses.sum());
+    }
+
+    /// Drops all cached embeddings, the encodings in progress still complete for those who wait for them.
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HexFormat;
+
+/// The image of an image query: a file, read from disk whenever it's needed, or the bytes of an upload.
+sealed interface ImageSource permits ImageSource.File, ImageSource.Bytes {
+
+    static ImageSource of(Path path) {
+        return new File(path);
+    }
+
+    static ImageSource of(byte[] bytes) {
+        return new Bytes(bytes);
+    }
+
+    /// What the results are labelled with.
+    String name();
+
+    long size() throws IOException;
+
+    /// A new stream of the whole image, for the caller to close.
+    InputStream open() throws IOException;
+
+    /// The SHA-256 of the image, in hex, the same for a file and for its bytes.
+    default String contentHash() throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("Every JDK has SHA-256", e);
+        }
+        try (InputStream image = open();
+             OutputStream digesting = new DigestOutputStream(OutputStream.nullOutputStream(), digest)) {
+            image.transferTo(digesting);
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    record File(Path path) implements ImageSource {
+        @Override
+        public String name() {
+            return path.getFileName().toString();
+        }
+
+        @Override
+        public long size() throws IOException {
+            return Files.size(path);
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return Files.newInputStream(path);
+        }
+    }
+
+    /// The bytes aren't copied, so they mustn't be changed afterwards.
+    record Bytes(byte[] bytes) implements ImageSource {
+        @Override
+        public String name() {
+            return "image of " + bytes.length + " bytes";
+        }
+
+        @Override
+        public long size() {
+            return bytes.length;
+        }
+
+        @Override
+        public InputStream open() {
+            return new ByteArrayInputStream(bytes);
+        }
+    }
+}
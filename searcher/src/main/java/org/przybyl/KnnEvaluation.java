@@ -0,0 +1,342 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch.core.BulkResponse;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import co.elastic.clients.transport.rest_client.RestClientTransport;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.przybyl.EnterpriseySearcher.OBJECT_MAPPER;
+
+/// Offline evaluation of the kNN search: recall@k against latency, for a grid of parameters,
+/// so that `k`, `num_candidates` and the `m` and `ef_construction` of the `int8_hnsw` index aren't tuned blind.
+///
+/// The ground truth are the exact top k, found with a parallel brute-force scan ([ExactKnn]).
+/// The queries are the embeddings of randomly chosen documents, with some noise added,
+/// so they have near neighbours, like the real queries do.
+///
+/// Backends:
+/// - `hnsw` an in-process [HnswIndex], built for each `m` and `ef_construction`, nothing else is needed
+/// - `elasticsearch` each query is a bare `knn` search, without the index existence check and the reranking of the searcher;
+///   unless `ES_URL` is set, to the local stand-in, which is exact, so only the overhead is measured.
+///   With `--create-indices true` an index is created, loaded and deleted for each `m` and `ef_construction`,
+///   otherwise the existing `--index` is queried as it is.
+///
+/// Options (all optional):
+/// - `--data <bulk files, comma separated>` the documents, otherwise `--docs <count>` synthetic, clustered ones, `10000` by default
+/// - `--queries <count>` `200` by default, and `--noise <relative>` `0.5` by default
+/// - `--k`, `--num-candidates`, `--m`, `--ef-construction` comma separated grids,
+///   `5,10`, `10,50,100`, `16` and `100` by default (the `mapping.json` settings)
+/// - `--int8 true|false` whether the in-process index quantizes the vectors, `true` by default
+/// - `--backend hnsw|elasticsearch` `hnsw` by default
+/// - `--index <name>` `catalogue` by default
+public class KnnEvaluation {
+
+    /// The result of one point of the grid, latencies in nanoseconds.
+    record GridPoint(String setting, int k, int numCandidates, double recall, long p50, long p99) {
+        @Override
+        public String toString() {
+            return "%s k=%d num_candidates=%d: recall@k=%.3f p50=%.2fms p99=%.2fms".formatted(
+                setting, k, numCandidates, recall, p50 / 1e6, p99 / 1e6);
+        }
+    }
+
+    /// A kNN search returning the `full-path` of the hits, the nearest first.
+    interface KnnBackend {
+        List<String> search(float[] query, int k, int numCandidates) throws IOException;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = LoadGenerator.parseOptions(args);
+        String indexName = options.getOrDefault("index", "catalogue");
+        List<CatalogueDocument> documents = new ArrayList<>();
+        if (options.containsKey("data")) {
+            for (String bulkFile : options.get("data").split(",")) {
+                CatalogueDocument.readBulkFile(Path.of(bulkFile)).stream()
+                    .filter(document -> document.embedding() != null)
+                    .forEach(documents::add);
+            }
+        } else {
+            documents.addAll(syntheticDocuments(Integer.parseInt(options.getOrDefault("docs", "10000")),
+                StubBackends.DIMENSIONS, new Random(42)));
+        }
+        List<float[]> queries = perturbedQueries(documents, Integer.parseInt(options.getOrDefault("queries", "200")),
+            Double.parseDouble(options.getOrDefault("noise", "0.5")), new Random(7));
+        List<Integer> ks = grid(options.getOrDefault("k", "5,10"));
+        List<Integer> numCandidates = grid(options.getOrDefault("num-candidates", "10,50,100"));
+        List<Integer> ms = grid(options.getOrDefault("m", "16"));
+        List<Integer> efConstructions = grid(options.getOrDefault("ef-construction", "100"));
+
+        long start = System.nanoTime();
+        List<List<String>> groundTruth;
+        try (ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors())) {
+            groundTruth = groundTruth(documents, queries, ks.stream().mapToInt(Integer::intValue).max().orElse(0), pool);
+        }
+        System.out.printf("Exact top k of %d queries over %d documents in %s%n",
+            queries.size(), documents.size(), Duration.ofNanos(System.nanoTime() - start));
+
+        List<GridPoint> results = switch (options.getOrDefault("backend", "hnsw")) {
+            case "hnsw" -> evaluateHnsw(documents, queries, groundTruth, ks, numCandidates, ms, efConstructions,
+                Boolean.parseBoolean(options.getOrDefault("int8", "true")));
+            case "elasticsearch" -> evaluateElasticsearch(documents, queries, groundTruth, ks, numCandidates, ms, efConstructions,
+                indexName, Boolean.parseBoolean(options.getOrDefault("create-indices", "false")));
+            default -> throw new IllegalArgumentException("Unknown backend: " + options.get("backend"));
+        };
+        results.forEach(System.out::println);
+    }
+
+    /// The `full-path` of the exact top `k` documents of each query.
+    static List<List<String>> groundTruth(List<CatalogueDocument> documents, List<float[]> queries, int k, ForkJoinPool pool) {
+        ExactKnn exact = new ExactKnn(documents.stream().map(CatalogueDocument::embedding).toList());
+        return Arrays.stream(exact.topK(queries, k, pool))
+            .map(ids -> Arrays.stream(ids).mapToObj(id -> documents.get(id).fullPath()).toList())
+            .toList();
+    }
+
+    static List<GridPoint> evaluateHnsw(List<CatalogueDocument> documents, List<float[]> queries, List<List<String>> groundTruth,
+                                        List<Integer> ks, List<Integer> numCandidates, List<Integer> ms,
+                                        List<Integer> efConstructions, boolean int8) throws IOException {
+        List<float[]> vectors = documents.stream().map(CatalogueDocument::embedding).toList();
+        List<GridPoint> results = new ArrayList<>();
+        for (int m : ms) {
+            for (int efConstruction : efConstructions) {
+                long start = System.nanoTime();
+                HnswIndex index = HnswIndex.build(vectors, m, efConstruction, int8, new Random(42));
+                Duration build = Duration.ofNanos(System.nanoTime() - start);
+                String setting = "hnsw%s m=%d ef_construction=%d (built in %s)".formatted(int8 ? " int8" : "", m, efConstruction, build);
+                KnnBackend backend = (query, k, candidates) -> Arrays.stream(index.search(query, k, candidates))
+                    .mapToObj(id -> documents.get(id).fullPath())
+                    .toList();
+                results.addAll(evaluate(setting, backend, queries, groundTruth, ks, numCandidates));
+            }
+        }
+        return results;
+    }
+
+    static List<GridPoint> evaluateElasticsearch(List<CatalogueDocument> documents, List<float[]> queries,
+                                                 List<List<String>> groundTruth, List<Integer> ks, List<Integer> numCandidates,
+                                                 List<Integer> ms, List<Integer> efConstructions,
+                                                 String indexName, boolean createIndices) throws IOException {
+        if (System.getenv("ES_URL") == null) {
+            return evaluateStandIn(documents, queries, groundTruth, ks, numCandidates, indexName);
+        }
+        try (var restClient = EnterpriseySearcher.restClient(System.getenv("ES_URL"), System.getenv("ES_API_KEY"))) {
+            ElasticsearchClient esClient = new ElasticsearchClient(new RestClientTransport(restClient, new JacksonJsonpMapper()));
+            if (!createIndices) {
+                return evaluate("elasticsearch " + indexName, elasticsearchBackend(indexName, esClient), queries, groundTruth, ks, numCandidates);
+            }
+            List<GridPoint> results = new ArrayList<>();
+            for (int m : ms) {
+                for (int efConstruction : efConstructions) {
+                    String evaluationIndex = "%s-evaluation-m%d-ef%d".formatted(indexName, m, efConstruction);
+                    long start = System.nanoTime();
+                    createIndex(esClient, evaluationIndex, m, efConstruction, documents);
+                    try {
+                        String setting = "elasticsearch int8_hnsw m=%d ef_construction=%d (loaded in %s)".formatted(
+                            m, efConstruction, Duration.ofNanos(System.nanoTime() - start));
+                        results.addAll(evaluate(setting, elasticsearchBackend(evaluationIndex, esClient), queries, groundTruth, ks, numCandidates));
+                    } finally {
+                        esClient.indices().delete(d -> d.index(evaluationIndex));
+                    }
+                }
+            }
+            return results;
+        }
+    }
+
+    /// Loads the documents into the local Elasticsearch stand-in, and queries it.
+    static List<GridPoint> evaluateStandIn(List<CatalogueDocument> documents, List<float[]> queries, List<List<String>> groundTruth,
+                                           List<Integer> ks, List<Integer> numCandidates, String indexName) throws IOException {
+        Path bulkFile = Files.createTempFile("knn-evaluation", ".ndjson");
+        try (var elasticsearch = StubBackends.startElasticsearch(indexName, List.of(writeBulkFile(documents, bulkFile)), 0, Duration.ZERO)) {
+            ElasticsearchClient esClient = StubBackends.elasticsearchClient(elasticsearch);
+            try {
+                return evaluate("stand-in (exact)", elasticsearchBackend(indexName, esClient), queries, groundTruth, ks, numCandidates);
+            } finally {
+                esClient._transport().close();
+            }
+        } finally {
+            Files.deleteIfExists(bulkFile);
+        }
+    }
+
+    /// Runs the queries one by one, for each `k` and `numCandidates`, after a warm-up round.
+    static List<GridPoint> evaluate(String setting, KnnBackend backend, List<float[]> queries, List<List<String>> groundTruth,
+                                    List<Integer> ks, List<Integer> numCandidates) throws IOException {
+        for (float[] query : queries) {
+            backend.search(query, ks.getFirst(), numCandidates.getFirst());
+        }
+        List<GridPoint> results = new ArrayList<>();
+        for (int k : ks) {
+            for (int candidates : numCandidates) {
+                if (candidates < k) {
+                    continue;
+                }
+                long[] latencies = new long[queries.size()];
+                double recall = 0;
+                for (int i = 0; i < queries.size(); i++) {
+                    long start = System.nanoTime();
+                    List<String> found = backend.search(queries.get(i), k, candidates);
+                    latencies[i] = System.nanoTime() - start;
+                    recall += recall(groundTruth.get(i), found, k);
+                }
+                Arrays.sort(latencies);
+                results.add(new GridPoint(setting, k, candidates, queries.isEmpty() ? 0 : recall / queries.size(),
+                    LoadGenerator.Report.percentile(latencies, 50), LoadGenerator.Report.percentile(latencies, 99)));
+            }
+        }
+        return results;
+    }
+
+    /// Fraction of the exact top `k` which was found.
+    static double recall(List<String> exact, List<String> found, int k) {
+        List<String> expected = exact.subList(0, Math.min(k, exact.size()));
+        if (expected.isEmpty()) {
+            return 1;
+        }
+        Set<String> hits = new HashSet<>(found.subList(0, Math.min(k, found.size())));
+        return expected.stream().filter(hits::contains).count() / (double) expected.size();
+    }
+
+    /// Documents with embeddings around `count / 100` random centres, unlike uniformly random vectors,
+    /// these have near neighbours, like the real embeddings do.
+    static List<CatalogueDocument> syntheticDocuments(int count, int dimensions, Random random) {
+        float[][] centres = new float[Math.max(1, count / 100)][];
+        for (int c = 0; c < centres.length; c++) {
+            centres[c] = gaussian(dimensions, 1, random);
+        }
+        List<CatalogueDocument> documents = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            float[] embedding = gaussian(dimensions, 0.5, random);
+            float[] centre = centres[random.nextInt(centres.length)];
+            for (int d = 0; d < dimensions; d++) {
+                embedding[d] += centre[d];
+            }
+            String filename = "synthetic-%06d.jpg".formatted(i);
+            Price price = new Price(BigDecimal.valueOf(random.nextInt(1, 10_000), Price.SCALE), random.nextBoolean() ? "EUR" : "USD");
+            documents.add(new CatalogueDocument(filename, "/synthetic/" + filename, price, embedding));
+        }
+        return documents;
+    }
+
+    /// Normalised embeddings of randomly chosen documents, with gaussian noise of `noise` times their length added.
+    static List<float[]> perturbedQueries(List<CatalogueDocument> documents, int count, double noise, Random random) {
+        List<float[]> queries = new ArrayList<>(count);
+        for (int i = 0; i < count && !documents.isEmpty(); i++) {
+            float[] query = VectorSimilarity.normalised(documents.get(random.nextInt(documents.size())).embedding());
+            float[] perturbation = gaussian(query.length, noise / Math.sqrt(query.length), random);
+            for (int d = 0; d < query.length; d++) {
+                query[d] += perturbation[d];
+            }
+            queries.add(query);
+        }
+        return queries;
+    }
+
+    private static KnnBackend elasticsearchBackend(String indexName, ElasticsearchClient esClient) {
+        // only the approximate kNN search is measured, no other round trips, and no reranking
+        return (query, k, numCandidates) -> {
+            try {
+                return esClient.search(s -> s
+                            .index(indexName)
+                            .knn(knn -> knn
+                                .field("embedding")
+                                .queryVector(EnterpriseySearcher.asFloatList(query))
+                                .k(k)
+                                .numCandidates(numCandidates))
+                            .size(k)
+                            .source(src -> src.filter(f -> f.includes("full-path"))),
+                        CatalogueItem.class)
+                    .hits().hits().stream()
+                    .map(hit -> hit.source().fullPath())
+                    .toList();
+            } catch (Exception e) {
+                throw new IOException("Failed to perform search: " + e.getMessage(), e);
+            }
+        };
+    }
+
+    /// Creates the index with the `mapping.json` mapping, but the given `m` and `ef_construction`, and loads the documents.
+    private static void createIndex(ElasticsearchClient esClient, String indexName, int m, int efConstruction,
+                                    List<CatalogueDocument> documents) throws IOException {
+        int dimensions = documents.getFirst().embedding().length;
+        esClient.indices().create(c -> c
+            .index(indexName)
+            .mappings(mapping -> mapping
+                .properties("embedding", p -> p.denseVector(v -> v
+                    .dims(dimensions)
+                    .index(true)
+                    .similarity("cosine")
+                    .indexOptions(io -> io.type("int8_hnsw").m(m).efConstruction(efConstruction))))
+                .properties("filename", p -> p.keyword(kw -> kw))
+                .properties("full-path", p -> p.keyword(kw -> kw))
+                .properties("price", p -> p.object(o -> o
+                    .properties("currency", c2 -> c2.keyword(kw -> kw))
+                    .properties("value", v -> v.scaledFloat(sf -> sf.scalingFactor(100.0)))))));
+        for (int from = 0; from < documents.size(); from += 500) {
+            List<CatalogueDocument> batch = documents.subList(from, Math.min(from + 500, documents.size()));
+            BulkResponse response = esClient.bulk(b -> {
+                batch.forEach(document -> b.operations(op -> op.index(i -> i.index(indexName).document(document))));
+                return b;
+            });
+            if (response.errors()) {
+                throw new IOException("Failed to load the documents into " + indexName);
+            }
+        }
+        esClient.indices().refresh(r -> r.index(indexName));
+    }
+
+    private static Path writeBulkFile(List<CatalogueDocument> documents, Path bulkFile) throws IOException {
+        try (BufferedWriter writer = Files.newBufferedWriter(bulkFile)) {
+            for (CatalogueDocument document : documents) {
+                writer.write("{\"index\":{}}");
+                writer.newLine();
+                writer.write(OBJECT_MAPPER.writeValueAsString(document));
+                writer.newLine();
+            }
+        }
+        return bulkFile;
+    }
+
+    private static float[] gaussian(int dimensions, double deviation, Random random) {
+        float[] vector = new float[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            vector[d] = (float) (random.nextGaussian() * deviation);
+        }
+        return vector;
+    }
+
+    private static List<Integer> grid(String values) {
+        return Arrays.stream(values.split(",")).map(String::trim).map(Integer::valueOf).toList();
+    }
+}
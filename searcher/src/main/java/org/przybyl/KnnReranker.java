@@ -0,0 +1,117 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/// Reorders the kNN candidates by their exact cosine similarity to the query.
+///
+/// The index keeps the embeddings `int8` quantized, which is cheap, but the quantization error reorders the nearest neighbours.
+/// So `oversample` times more candidates are retrieved, and rescored with the full precision `float` embeddings,
+/// taken from a local vector store (keyed by `full-path`) or, when there's none, from the `_source` of the hits.
+/// Candidates without an embedding keep their order, after the rescored ones.
+///
+/// With `oversample` of `1` nothing is reranked.
+final class KnnReranker {
+
+    static final KnnReranker DISABLED = new KnnReranker(1, Map.of());
+
+    private final int oversample;
+    // normalised
+    private final Map<String, float[]> localVectors;
+
+    KnnReranker(int oversample, Map<String, float[]> localVectors) {
+        if (oversample < 1) {
+            throw new IllegalArgumentException("Oversample must be at least 1: " + oversample);
+        }
+        this.oversample = oversample;
+        this.localVectors = localVectors;
+    }
+
+    /// The local vector store read from a bulk NDJSON file, like the one used to index the documents.
+    static KnnReranker withLocalVectors(int oversample, Path bulkFile) throws IOException {
+        Map<String, float[]> vectors = new HashMap<>();
+        for (CatalogueDocument document : CatalogueDocument.readBulkFile(bulkFile)) {
+            if (document.embedding() != null) {
+                vectors.put(document.fullPath(), VectorSimilarity.normalised(document.embedding()));
+            }
+        }
+        return new KnnReranker(oversample, Map.copyOf(vectors));
+    }
+
+    boolean enabled() {
+        return oversample > 1;
+    }
+
+    /// How many candidates to retrieve, to end up with `k` results.
+    int candidates(int k) {
+        return k * oversample;
+    }
+
+    /// Whether the embeddings have to be fetched with the hits.
+    boolean needsSourceEmbeddings() {
+        return enabled() && localVectors.isEmpty();
+    }
+
+    /// Whether there's a local vector store, which other stages may use too, see [#localVector(String)].
+    boolean hasLocalVectors() {
+        return !localVectors.isEmpty();
+    }
+
+    /// The normalised embedding of the document from the local vector store, or `null`.
+    float[] localVector(String fullPath) {
+        return localVectors.get(fullPath);
+    }
+
+    /// Tells searches with and without reranking apart, e.g. in caches.
+    String profile() {
+        return enabled() ? "rerank[x" + oversample + "]" : "";
+    }
+
+    /// The top `k` of `candidates` by the exact cosine similarity to `queryVector`.
+    List<CatalogueItem> rerank(float[] queryVector, List<CatalogueDocument> candidates, int k) {
+        float[] query = VectorSimilarity.normalised(queryVector);
+        record Scored(CatalogueItem item, float score) {
+        }
+        List<Scored> scored = new ArrayList<>(candidates.size());
+        for (CatalogueDocument candidate : candidates) {
+            scored.add(new Scored(candidate.item(), score(query, candidate)));
+        }
+        // stable, so the unscored candidates keep their order
+        scored.sort(Comparator.comparingDouble(Scored::score).reversed());
+        return scored.stream().limit(k).map(Scored::item).toList();
+    }
+
+    private float score(float[] query, CatalogueDocument candidate) {
+        float[] local = localVectors.get(candidate.fullPath());
+        if (local != null && local.length == query.length) {
+            return VectorSimilarity.dotProduct(query, local);
+        }
+        float[] embedding = candidate.embedding();
+        if (embedding == null || embedding.length != query.length) {
+            return Float.NEGATIVE_INFINITY;
+        }
+        float norm = VectorSimilarity.norm(embedding);
+        return norm == 0 ? 0 : VectorSimilarity.dotProduct(query, embedding) / norm;
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import co.elastic.clients.transport.rest_client.RestClientTransport;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/// Open-loop load generator for the searcher, for capacity planning before a rollout.
+///
+/// Queries are sent at a fixed rate, no matter how fast the searcher answers, and the latency of each request
+/// is measured from the moment it *should* have been sent. This way a stall of the searcher shows up
+/// in the percentiles, instead of silently lowering the load (so called coordinated omission).
+/// The time from the actual send is reported too, as service time.
+/// Failed requests are in the percentiles too, and so are the ones still unfinished at the end,
+/// at the time they had been waiting by then; how many of them there were is reported next to the percentiles.
+///
+/// Queries are replayed from a query log (one query per line) or drawn from a Zipf distribution.
+/// Unless `ES_URL` is set, the searcher runs against the local [StubBackends].
+///
+/// Options (all optional):
+/// - `--queries <file>` query log to replay, in a loop
+/// - `--zipf <vocabulary size>` and `--zipf-exponent <s>` synthetic queries, `1000` and `1.0` by default
+/// - `--rate <requests per second>` `50` by default
+/// - `--duration <seconds>` and `--warmup <seconds>` `30` and `5` by default
+/// - `--mode cached|uncached` through the result cache (like `runSearch`) or straight to `executeSearch`
+/// - `--data <bulk files, comma separated>` documents of the Elasticsearch stand-in, otherwise `--docs <count>` synthetic ones
+/// - `--encoder-latency <ms>` and `--es-latency <ms>` latency added by the stand-ins
+public class LoadGenerator {
+
+    private static final String TIMEOUT = "timeout";
+    private static final List<String> HEAD_QUERIES = List.of("apple", "orange", "plum", "basket", "fruit", "shoes",
+        "car", "portrait", "sprinkler", "Heckscheibenwaschanlage", "Apfel", "pomme", "irrigation", "fashion");
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parseOptions(args);
+        String indexName = options.getOrDefault("index", "catalogue");
+        double rate = Double.parseDouble(options.getOrDefault("rate", "50"));
+        Duration duration = Duration.ofSeconds(Long.parseLong(options.getOrDefault("duration", "30")));
+        Duration warmup = Duration.ofSeconds(Long.parseLong(options.getOrDefault("warmup", "5")));
+        boolean cached = options.getOrDefault("mode", "cached").equals("cached");
+        QuerySource queries = options.containsKey("queries")
+            ? QuerySource.replay(Files.readAllLines(Path.of(options.get("queries"))))
+            : QuerySource.zipf(Integer.parseInt(options.getOrDefault("zipf", "1000")),
+            Double.parseDouble(options.getOrDefault("zipf-exponent", "1.0")), new Random(42));
+
+        List<AutoCloseable> resources = new ArrayList<>();
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            ElasticsearchClient esClient;
+            if (System.getenv("ES_URL") != null) {
+                var restClient = EnterpriseySearcher.restClient(System.getenv("ES_URL"), System.getenv("ES_API_KEY"));
+                resources.add(restClient);
+                esClient = new ElasticsearchClient(new RestClientTransport(restClient, new JacksonJsonpMapper()));
+            } else {
+                var encoder = StubBackends.startEncoder(Duration.ofMillis(Long.parseLong(options.getOrDefault("encoder-latency", "5"))));
+                resources.add(encoder);
+                List<Path> bulkFiles = options.containsKey("data")
+                    ? Arrays.stream(options.get("data").split(",")).map(Path::of).toList()
+                    : List.of();
+                var elasticsearch = StubBackends.startElasticsearch(indexName, bulkFiles,
+                    Integer.parseInt(options.getOrDefault("docs", "1000")),
+                    Duration.ofMillis(Long.parseLong(options.getOrDefault("es-latency", "2"))));
+                resources.add(elasticsearch);
+                EnterpriseySearcher.setEncoderUrl(encoder.url());
+                esClient = StubBackends.elasticsearchClient(elasticsearch);
+                resources.add(esClient._transport());
+                System.out.printf("Using stand-ins: encoder at %s, Elasticsearch at %s%n", encoder.url(), elasticsearch.url());
+            }
+
+            Function<String, CompletableFuture<SearchResult>> target = cached
+                ? query -> EnterpriseySearcher.cachedSearch(query, indexName, esClient, executor)
+                : query -> EnterpriseySearcher.search(query, indexName, esClient, executor);
+            System.out.printf("Sending %.1f req/s for %s (after %s of warm-up), %s%n",
+                rate, duration, warmup, cached ? "through the result cache" : "without the result cache");
+            Report report = run(queries, rate, warmup, duration, target);
+            System.out.println(report);
+        } finally {
+            for (AutoCloseable resource : resources.reversed()) {
+                resource.close();
+            }
+        }
+    }
+
+    /// Sends the queries at `rate` per second, first for `warmup` (not recorded) then for `duration`,
+    /// and waits for the outstanding requests, at most 30 seconds.
+    static Report run(QuerySource queries, double rate, Duration warmup, Duration duration,
+                      Function<String, CompletableFuture<SearchResult>> target) {
+        return run(queries, rate, warmup, duration, Duration.ofSeconds(30), target);
+    }
+
+    /// Like [#run(QuerySource, double, Duration, Duration, Function)], but waits for the outstanding requests
+    /// at most `drain`, the ones still unfinished are recorded with the time they've been waiting until then.
+    static Report run(QuerySource queries, double rate, Duration warmup, Duration duration, Duration drain,
+                      Function<String, CompletableFuture<SearchResult>> target) {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long total = (warmup.toNanos() + duration.toNanos()) / interval;
+        long recordFrom = warmup.toNanos() / interval;
+        Recorder recorder = new Recorder((int) (total - recordFrom));
+        List<Request> outstanding = new ArrayList<>();
+
+        long start = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            long intended = start + i * interval;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            boolean recorded = i >= recordFrom;
+            String query = queries.next();
+            long sent = System.nanoTime();
+            CompletableFuture<SearchResult> future;
+            try {
+                future = target.apply(query);
+            } catch (RuntimeException e) {
+                future = CompletableFuture.failedFuture(e);
+            }
+            if (!recorded) {
+                continue;
+            }
+            Request request = new Request(intended, sent, new AtomicBoolean(), new CompletableFuture<>());
+            outstanding.add(request);
+            future.whenComplete((_, ex) -> {
+                long done = System.nanoTime();
+                // whichever comes first, the completion or the end of the waiting, records the request
+                if (request.claimed().compareAndSet(false, true)) {
+                    recorder.record(done - request.intended(), done - request.sent(), ex);
+                    request.recorded().complete(null);
+                }
+            });
+        }
+        long sendingEnded = System.nanoTime();
+        try {
+            CompletableFuture.allOf(outstanding.stream().map(Request::recorded).toArray(CompletableFuture[]::new))
+                .get(drain.toNanos(), TimeUnit.NANOSECONDS);
+        } catch (Exception e) {
+            // the requests which didn't complete are recorded below
+        }
+        long end = System.nanoTime();
+        for (Request request : outstanding) {
+            if (request.claimed().compareAndSet(false, true)) {
+                recorder.recordUnfinished(end - request.intended(), end - request.sent());
+            } else {
+                // completed just now, and being recorded
+                request.recorded().join();
+            }
+        }
+        return recorder.report(total - recordFrom, Duration.ofNanos(sendingEnded - start).minus(warmup));
+    }
+
+    static Map<String, String> parseOptions(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            if (!args[i].startsWith("--")) {
+                throw new IllegalArgumentException("Expected an option, got: " + args[i]);
+            }
+            options.put(args[i].substring(2), args[i + 1]);
+        }
+        return options;
+    }
+
+    interface QuerySource {
+        String next();
+
+        /// Replays the queries in a loop, skipping blank lines.
+        static QuerySource replay(List<String> log) {
+            List<String> queries = log.stream().filter(line -> !line.isBlank()).toList();
+            if (queries.isEmpty()) {
+                throw new IllegalArgumentException("No queries to replay");
+            }
+            AtomicInteger next = new AtomicInteger();
+            return () -> queries.get(Math.floorMod(next.getAndIncrement(), queries.size()));
+        }
+
+        /// Query of rank `r` is drawn with probability proportional to `1 / r^exponent`,
+        /// the head queries are real words, the long tail is synthetic.
+        static QuerySource zipf(int vocabularySize, double exponent, Random random) {
+            double[] cumulative = new double[vocabularySize];
+            double sum = 0;
+            for (int rank = 1; rank <= vocabularySize; rank++) {
+                sum += 1 / Math.pow(rank, exponent);
+                cumulative[rank - 1] = sum;
+            }
+            double total = sum;
+            return () -> {
+                double draw;
+                synchronized (random) {
+                    draw = random.nextDouble() * total;
+                }
+                int index = Arrays.binarySearch(cumulative, draw);
+                int rank = index >= 0 ? index : Math.min(-index - 1, vocabularySize - 1);
+                return rank < HEAD_QUERIES.size() ? HEAD_QUERIES.get(rank) : "query-" + rank;
+            };
+        }
+    }
+
+    /// The response and service times are of all the recorded requests: succeeded, failed and unfinished.
+    record Report(long scheduled, long completed, Map<String, Long> errors, long unfinished, Duration elapsed,
+                  long[] responseTimes, long[] serviceTimes) {
+
+        long failed() {
+            return errors.values().stream().mapToLong(Long::longValue).sum();
+        }
+
+        long timeouts() {
+            return errors.getOrDefault(TIMEOUT, 0L);
+        }
+
+        double throughput() {
+            return elapsed.isZero() ? 0 : completed * 1e9 / elapsed.toNanos();
+        }
+
+        /// Nearest-rank percentile of the sorted response times, in nanoseconds.
+        static long percentile(long[] sorted, double percentile) {
+            if (sorted.length == 0) {
+                return 0;
+            }
+            int rank = (int) Math.ceil(percentile / 100 * sorted.length);
+            return sorted[Math.clamp(rank - 1, 0, sorted.length - 1)];
+        }
+
+        @Override
+        public String toString() {
+            return """
+                Requests: %d scheduled, %d succeeded, %d failed %s, %d unfinished
+                Throughput: %.1f req/s
+                Response time (since intended send): %s
+                Service time (since actual send):    %s"""
+                .formatted(scheduled, completed, failed(), errors, unfinished, throughput(),
+                    percentiles(responseTimes), percentiles(serviceTimes));
+        }
+
+        private String percentiles(long[] sorted) {
+            return "p50=%.2fms p90=%.2fms p99=%.2fms p99.9=%.2fms max=%.2fms (%d errors, %d timeouts, %d unfinished)".formatted(
+                percentile(sorted, 50) / 1e6, percentile(sorted, 90) / 1e6, percentile(sorted, 99) / 1e6,
+                percentile(sorted, 99.9) / 1e6, percentile(sorted, 100) / 1e6, failed() - timeouts(), timeouts(), unfinished);
+        }
+    }
+
+    private record Request(long intended, long sent, AtomicBoolean claimed, CompletableFuture<Void> recorded) {
+    }
+
+    private static final class Recorder {
+        private final long[] responseTimes;
+        private final long[] serviceTimes;
+        private final AtomicInteger count = new AtomicInteger();
+        private final LongAdder completed = new LongAdder();
+        private final LongAdder unfinished = new LongAdder();
+        private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+        Recorder(int capacity) {
+            this.responseTimes = new long[capacity];
+            this.serviceTimes = new long[capacity];
+        }
+
+        void record(long responseTime, long serviceTime, Throwable failure) {
+            if (failure != null) {
+                Throwable cause = failure instanceof CompletionException && failure.getCause() != null ? failure.getCause() : failure;
+                String name = cause instanceof TimeoutException ? TIMEOUT : cause.getClass().getSimpleName();
+                errors.computeIfAbsent(name, _ -> new LongAdder()).increment();
+            } else {
+                completed.increment();
+            }
+            addTimes(responseTime, serviceTime);
+        }
+
+        void recordUnfinished(long responseTime, long serviceTime) {
+            unfinished.increment();
+            addTimes(responseTime, serviceTime);
+        }
+
+        private void addTimes(long responseTime, long serviceTime) {
+            int i = count.getAndIncrement();
+            if (i < responseTimes.length) {
+                responseTimes[i] = responseTime;
+                serviceTimes[i] = serviceTime;
+            }
+        }
+
+        Report report(long scheduled, Duration elapsed) {
+            int size = Math.min(count.get(), responseTimes.length);
+            long[] response = Arrays.copyOf(responseTimes, size);
+            long[] service = Arrays.copyOf(serviceTimes, size);
+            Arrays.sort(response);
+            Arrays.sort(service);
+            Map<String, Long> errorCounts = new TreeMap<>();
+            errors.forEach((name, adder) -> errorCounts.put(name, adder.sum()));
+            return new Report(scheduled, completed.sum(), errorCounts, unfinished.sum(), elapsed, response, service);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/// Diversifies the fused results with Maximal Marginal Relevance, so the top K isn't five photos of the same apples.
+///
+/// The candidates are picked one by one, each time the one maximising
+/// `lambda * relevance - (1 - lambda) * (the highest cosine similarity to the ones picked already)`.
+/// The relevance comes from the fused order: `1` for the first of the `window` candidates, down to `1 / window` for the last.
+/// With `lambda` of `1` it's just the fused order, the lower it is, the more diverse the results.
+///
+/// The cosine similarity matrix of the candidates is computed incrementally with the Vector API:
+/// only the rows of the picked candidates, each right after it's picked, so `k * window` dot products instead of `window²`,
+/// and the embeddings aren't even copied.
+/// Candidates without an embedding aren't similar to any other.
+final class MmrDiversifier {
+
+    static final MmrDiversifier DISABLED = new MmrDiversifier(1, 0);
+
+    private final double lambda;
+    private final int window;
+
+    MmrDiversifier(double lambda, int window) {
+        if (lambda < 0 || lambda > 1) {
+            throw new IllegalArgumentException("Lambda must be between 0 and 1: " + lambda);
+        }
+        if (window < 0) {
+            throw new IllegalArgumentException("Window must not be negative: " + window);
+        }
+        this.lambda = lambda;
+        this.window = window;
+    }
+
+    boolean enabled() {
+        return lambda < 1 && window > 0;
+    }
+
+    /// How many fused candidates to diversify, to end up with `k` results.
+    int window(int k) {
+        return enabled() ? Math.max(k, window) : k;
+    }
+
+    /// Tells searches with and without diversification apart, e.g. in caches.
+    String profile() {
+        return enabled() ? "mmr[lambda=" + lambda + ", window=" + window + "]" : "";
+    }
+
+    /// The diverse top `k` of the `ranked` candidates, in the order they were picked.
+    /// `embeddings` gives the embedding of a `full-path`, or `null`.
+    List<CatalogueItem> diversify(List<CatalogueItem> ranked, Function<String, float[]> embeddings, int k) {
+        int n = ranked.size();
+        float[][] vectors = new float[n][];
+        // 0 for the candidates without an embedding, or with one of other dimensions than the first one
+        float[] norms = new float[n];
+        int dimensions = -1;
+        for (int i = 0; i < n; i++) {
+            vectors[i] = embeddings.apply(ranked.get(i).fullPath());
+            if (vectors[i] != null) {
+                dimensions = dimensions < 0 ? vectors[i].length : dimensions;
+                norms[i] = vectors[i].length == dimensions ? VectorSimilarity.norm(vectors[i]) : 0;
+            }
+        }
+
+        // the highest similarity to the picked candidates, none is picked yet
+        float[] maxSimilarity = new float[n];
+        Arrays.fill(maxSimilarity, Float.NEGATIVE_INFINITY);
+        boolean[] picked = new boolean[n];
+        List<CatalogueItem> diverse = new ArrayList<>(Math.min(k, n));
+        while (diverse.size() < Math.min(k, n)) {
+            int best = -1;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                if (picked[i]) {
+                    continue;
+                }
+                double relevance = (double) (n - i) / n;
+                double redundancy = maxSimilarity[i] == Float.NEGATIVE_INFINITY ? 0 : maxSimilarity[i];
+                double score = lambda * relevance - (1 - lambda) * redundancy;
+                // on ties, the better fused one wins
+                if (score > bestScore) {
+                    best = i;
+                    bestScore = score;
+                }
+            }
+            picked[best] = true;
+            diverse.add(ranked.get(best));
+            if (norms[best] == 0) {
+                continue;
+            }
+            // the next row of the similarity matrix, only of the candidates still to pick
+            for (int i = 0; i < n; i++) {
+                if (!picked[i] && norms[i] != 0) {
+                    float similarity = VectorSimilarity.dotProduct(vectors[best], vectors[i]) / (norms[best] * norms[i]);
+                    maxSimilarity[i] = Math.max(maxSimilarity[i], similarity);
+                }
+            }
+        }
+        return diverse;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.elasticsearch._types.FieldValue;
+import co.elastic.clients.elasticsearch._types.SortOrder;
+import co.elastic.clients.elasticsearch._types.Time;
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+import co.elastic.clients.elasticsearch.core.SearchResponse;
+import co.elastic.clients.elasticsearch.core.search.Hit;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+/// The hybrid search, page by page.
+///
+/// Both legs search the same point in time of the index, so documents indexed or deleted in the meantime
+/// don't shift the pages, and each of them continues with `search_after` from its last hit,
+/// so page N costs no more than the first one. The legs are fused with a [FusionCursor],
+/// which runs them on the executor, guarded like the other searches, so the executor must outlive the search.
+///
+/// Like the `rrf` retriever, only the top [#RANK_WINDOW] hits of each leg are fused, so at most twice as many are paged through.
+/// Without the window, legs which hardly agree would be read to their end for the first page already.
+/// The kNN leg is a `knn` query for the window, which is run again for each batch, so the legs are fetched
+/// in batches of [#BATCH_SIZE], much larger than a page, and a page needs at most a couple of them.
+final class PagedSearch implements AutoCloseable {
+
+    static final Duration KEEP_ALIVE = Duration.ofMinutes(1);
+    static final int RANK_WINDOW = 500;
+    static final int BATCH_SIZE = 250;
+
+    private final String query;
+    private final int pageSize;
+    private final boolean partial;
+    private final ElasticsearchClient esClient;
+    private final FusionCursor fusion;
+    // Elasticsearch may change it with every search
+    private volatile String pitId;
+
+    private PagedSearch(QueryWithVector qwv, int pageSize, ElasticsearchClient esClient, Executor executor, String pitId) {
+        this.query = qwv.getQuery();
+        this.pageSize = pageSize;
+        this.esClient = esClient;
+        this.pitId = pitId;
+        List<FusionCursor.Leg> legs = new ArrayList<>();
+        if (qwv.getVector() != null) {
+            legs.add(new Leg(knnQuery(qwv.getVector(), qwv.getFilter())));
+        }
+        legs.add(new Leg(EnterpriseySearcher.classicQuery(qwv.getQuery(), qwv.getFilter())));
+        this.partial = legs.size() < 2;
+        this.fusion = new FusionCursor(legs, 60, RANK_WINDOW, Math.max(pageSize, BATCH_SIZE),
+            EnterpriseySearcher.ELASTICSEARCH_GUARD, executor);
+    }
+
+    /// Opens a point in time of the index, when there's no vector only the classic search is done.
+    static PagedSearch open(QueryWithVector qwv, int pageSize, String indexName, ElasticsearchClient esClient,
+                            Executor executor) throws IOException {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("Page size must be at least 1: " + pageSize);
+        }
+        EnterpriseySearcher.checkTheIndexExists(esClient, indexName);
+        String pitId = esClient.openPointInTime(p -> p.index(indexName).keepAlive(keepAlive())).id();
+        return new PagedSearch(qwv, pageSize, esClient, executor, pitId);
+    }
+
+    /// The next page, `cursor` is passed through to the result.
+    synchronized SearchResult nextPage(String cursor) throws IOException {
+        return new SearchResult(query, fusion.next(pageSize), partial, cursor);
+    }
+
+    synchronized boolean hasEnded() {
+        return fusion.hasEnded();
+    }
+
+    /// Closes the point in time, best effort, Elasticsearch closes it anyway after [#KEEP_ALIVE].
+    @Override
+    public void close() {
+        try {
+            esClient.closePointInTime(c -> c.id(pitId));
+        } catch (IOException | RuntimeException e) {
+            // it expires on its own
+        }
+    }
+
+    private static Query knnQuery(float[] vector, SearchFilter filter) {
+        return Query.of(q -> q.knn(knn -> {
+            knn
+                .field("embedding")
+                .queryVector(EnterpriseySearcher.asFloatList(vector))
+                .k(RANK_WINDOW)
+                .numCandidates((int) (1.5 * RANK_WINDOW));
+            filter.toQuery().ifPresent(knn::filter);
+            return knn;
+        }));
+    }
+
+    private static Time keepAlive() {
+        return Time.of(t -> t.time(KEEP_ALIVE.toSeconds() + "s"));
+    }
+
+    /// One leg, continuing after the sort values of its last hit.
+    private final class Leg implements FusionCursor.Leg {
+        private final Query query;
+        private List<FieldValue> searchAfter = List.of();
+
+        Leg(Query query) {
+            this.query = query;
+        }
+
+        @Override
+        public List<CatalogueItem> next(int size) throws IOException {
+            try {
+                SearchResponse<CatalogueItem> response = esClient.search(s -> {
+                        s
+                            .pit(p -> p.id(pitId).keepAlive(keepAlive()))
+                            .query(query)
+                            // with a point in time, ties are broken by the implicit _shard_doc
+                            .sort(sort -> sort.score(score -> score.order(SortOrder.Desc)))
+                            .size(size)
+                            .trackTotalHits(t -> t.enabled(false))
+                            .source(src -> src.filter(f -> f.includes("filename", "full-path", "price")));
+                        if (!searchAfter.isEmpty()) {
+                            s.searchAfter(searchAfter);
+                        }
+                        return s;
+                    },
+                    CatalogueItem.class);
+                if (response.pitId() != null) {
+                    pitId = response.pitId();
+                }
+                List<Hit<CatalogueItem>> hits = response.hits().hits();
+                if (!hits.isEmpty()) {
+                    searchAfter = hits.getLast().sort();
+                }
+                return hits.stream().map(Hit::source).toList();
+            } catch (Exception e) {
+                throw new IOException("Failed to fetch the next page: " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.transport.TransportException;
+import org.elasticsearch.client.ResponseException;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+/// Guards calls to a backend (Elasticsearch, the encoder) with a [CircuitBreaker]
+/// and an [AdaptiveConcurrencyLimit].
+///
+/// When the breaker is open or the limit is reached, the call fails fast with [BackendUnavailableException]
+/// instead of piling more work onto a struggling backend.
+/// Callers which can do without the backend pass a fallback, so the degraded part is skipped rather than awaited.
+/// Only failures telling that the backend is unhealthy count against it, see [#isBackendFailure(Throwable)].
+final class ResilientBackend {
+
+    private final String name;
+    private final CircuitBreaker breaker;
+    private final AdaptiveConcurrencyLimit limit;
+    private final Duration timeout;
+    private final LongSupplier nanoClock;
+
+    ResilientBackend(String name, CircuitBreaker breaker, AdaptiveConcurrencyLimit limit, Duration timeout, LongSupplier nanoClock) {
+        this.name = name;
+        this.breaker = breaker;
+        this.limit = limit;
+        this.timeout = timeout;
+        this.nanoClock = nanoClock;
+    }
+
+    /// A guard with defaults good enough for a single cluster or encoder:
+    /// the breaker opens after 5 consecutive failures for 10 seconds and probes with a single call,
+    /// the concurrency limit starts at 20 and adapts between 1 and 200.
+    static ResilientBackend withDefaults(String name, Duration timeout) {
+        return new ResilientBackend(name,
+            new CircuitBreaker(5, Duration.ofSeconds(10), 1, System::nanoTime),
+            new AdaptiveConcurrencyLimit(20, 1, 200, 2.0, 0.9),
+            timeout,
+            System::nanoTime);
+    }
+
+    /// Runs the action, unless the backend is considered unavailable.
+    /// The returned future fails with [BackendUnavailableException] when the call was rejected,
+    /// or with [TimeoutException] when it didn't complete within the timeout.
+    <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> action) {
+        long epoch = breaker.tryAcquire();
+        if (epoch == CircuitBreaker.REJECTED) {
+            return CompletableFuture.failedFuture(new BackendUnavailableException(name + " circuit breaker is " + breaker.state()));
+        }
+        if (!limit.tryAcquire()) {
+            breaker.onIgnored(epoch);
+            return CompletableFuture.failedFuture(new BackendUnavailableException(name + " concurrency limit of " + limit.limit() + " reached"));
+        }
+        long start = nanoClock.getAsLong();
+        CompletableFuture<T> underlying;
+        try {
+            underlying = action.get();
+        } catch (RuntimeException e) {
+            underlying = CompletableFuture.failedFuture(e);
+        }
+        // the permit is held until the backend really finishes, even if the caller stopped waiting
+        underlying.whenComplete((_, ex) -> {
+            // the backend which answered a bad request is fine, only the request wasn't
+            boolean healthy = ex == null || !isBackendFailure(ex);
+            limit.onComplete(nanoClock.getAsLong() - start, healthy);
+            if (healthy) {
+                breaker.onSuccess(epoch);
+            } else {
+                breaker.onFailure(epoch);
+            }
+        });
+        return underlying.copy().orTimeout(timeout.toNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /// Like [#call(Supplier)], but when the backend is unavailable or too slow, the fallback value is used instead.
+    /// Other failures are propagated.
+    <T> CompletableFuture<T> call(Supplier<CompletableFuture<T>> action, Supplier<T> fallback) {
+        return call(action).exceptionally(fallbackIfUnavailable(fallback));
+    }
+
+    static <T> Function<Throwable, T> fallbackIfUnavailable(Supplier<T> fallback) {
+        return ex -> {
+            Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+            if (cause instanceof BackendUnavailableException || cause instanceof TimeoutException) {
+                return fallback.get();
+            }
+            throw ex instanceof CompletionException ce ? ce : new CompletionException(ex);
+        };
+    }
+
+    /// Whether the failure tells that the backend is unhealthy: a timeout, a transport error or a 5xx response.
+    /// Failures which would be the same with a healthy backend, like a missing index, another 4xx response
+    /// or an [IllegalArgumentException], don't count.
+    static boolean isBackendFailure(Throwable failure) {
+        boolean transportError = false;
+        // the most specific cause with a status decides, the clients wrap them in various ways
+        for (Throwable cause = failure; cause != null; cause = cause.getCause()) {
+            if (cause instanceof TimeoutException) {
+                return true;
+            } else if (cause instanceof ElasticsearchException e) {
+                return e.status() >= 500;
+            } else if (cause instanceof ResponseException e) {
+                return e.getResponse().getStatusLine().getStatusCode() >= 500;
+            } else if (cause instanceof BackendResponseException e) {
+                return e.status() >= 500;
+            } else if (cause instanceof TransportException e && e.statusCode() > 0) {
+                return e.statusCode() >= 500;
+            } else if (cause instanceof IOException) {
+                transportError = true;
+            }
+        }
+        return transportError;
+    }
+
+    /// Forgets what has been learnt about the backend: closes the breaker and restarts the limit from its initial value.
+    void reset() {
+        breaker.reset();
+        limit.reset();
+    }
+
+    CircuitBreaker.State breakerState() {
+        return breaker.state();
+    }
+
+    int concurrencyLimit() {
+        return limit.limit();
+    }
+
+    @Override
+    public String toString() {
+        return "ResilientBackend[name=%s, breaker=%s, limit=%d]".formatted(name, breaker.state(), limit.limit());
+    }
+}
+
+/// Classic three-state circuit breaker.
+///
+/// After `failureThreshold` consecutive failures the breaker opens and rejects all calls for `openDuration`.
+/// Then it becomes half-open and lets through up to `probes` calls;
+/// if all of them succeed, the breaker closes, if any of them fails, it opens again.
+///
+/// Every change of the state starts a new epoch, and each call is admitted in one, see [#tryAcquire()].
+/// Only the calls of the current epoch change the state, so e.g. a slow call started before the breaker opened
+/// can't close it by succeeding while it's half-open, only the probes can.
+final class CircuitBreaker {
+
+    enum State {CLOSED, OPEN, HALF_OPEN}
+
+    static final long REJECTED = -1;
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final int probes;
+    private final LongSupplier nanoClock;
+
+    private State state = State.CLOSED;
+    private long epoch;
+    private int consecutiveFailures;
+    private long openedAt;
+    private int probesStarted;
+    private int probesSucceeded;
+
+    CircuitBreaker(int failureThreshold, Duration openDuration, int probes, LongSupplier nanoClock) {
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openDuration.toNanos();
+        this.probes = probes;
+        this.nanoClock = nanoClock;
+    }
+
+    /// The epoch the call is admitted in, to be passed to [#onSuccess(long)] or [#onFailure(long)], or [#REJECTED].
+    synchronized long tryAcquire() {
+        if (state == State.OPEN && nanoClock.getAsLong() - openedAt >= openNanos) {
+            transitionTo(State.HALF_OPEN);
+            probesStarted = 0;
+            probesSucceeded = 0;
+        }
+        return switch (state) {
+            case CLOSED -> epoch;
+            case OPEN -> REJECTED;
+            case HALF_OPEN -> {
+                if (probesStarted < probes) {
+                    probesStarted++;
+                    yield epoch;
+                }
+                yield REJECTED;
+            }
+        };
+    }
+
+    synchronized void onSuccess(long admittedIn) {
+        if (admittedIn != epoch) {
+            // a late response of a call started before the last change, doesn't prove anything
+            return;
+        }
+        switch (state) {
+            case CLOSED -> consecutiveFailures = 0;
+            case HALF_OPEN -> {
+                if (++probesSucceeded >= probes) {
+                    transitionTo(State.CLOSED);
+                    consecutiveFailures = 0;
+                }
+            }
+            case OPEN -> {
+                // no call is admitted while open
+            }
+        }
+    }
+
+    synchronized void onFailure(long admittedIn) {
+        if (admittedIn != epoch) {
+            return;
+        }
+        switch (state) {
+            case CLOSED -> {
+                if (++consecutiveFailures >= failureThreshold) {
+                    open();
+                }
+            }
+            case HALF_OPEN -> open();
+            case OPEN -> {
+                // no call is admitted while open
+            }
+        }
+    }
+
+    /// Returns a permit obtained with [#tryAcquire()] for a call that was never made.
+    synchronized void onIgnored(long admittedIn) {
+        if (admittedIn == epoch && state == State.HALF_OPEN && probesStarted > 0) {
+            probesStarted--;
+        }
+    }
+
+    synchronized State state() {
+        return state;
+    }
+
+    synchronized void reset() {
+        transitionTo(State.CLOSED);
+        consecutiveFailures = 0;
+        probesStarted = 0;
+        probesSucceeded = 0;
+    }
+
+    private void open() {
+        transitionTo(State.OPEN);
+        openedAt = nanoClock.getAsLong();
+    }
+
+    private void transitionTo(State next) {
+        state = next;
+        epoch++;
+    }
+}
+
+/// Concurrency limit which adapts to the latency observed by the caller, in AIMD fashion.
+///
+/// The lowest latency seen recently is the baseline. A call which succeeds within `tolerance` times the baseline
+/// increases the limit additively (by about one per limit-many calls), a failed or too slow call
+/// decreases it multiplicatively by `backoff`. This way the number of requests in flight follows
+/// what the backend can currently serve, instead of queueing inside it.
+final class AdaptiveConcurrencyLimit {
+
+    // forget the baseline from time to time, so it can follow a backend which permanently got slower
+    private static final int BASELINE_WINDOW = 1_000;
+
+    private final int initialLimit;
+    private final int minLimit;
+    private final int maxLimit;
+    private final double tolerance;
+    private final double backoff;
+
+    private double limit;
+    private int inFlight;
+    private long baselineNanos = Long.MAX_VALUE;
+    private int samples;
+
+    AdaptiveConcurrencyLimit(int initialLimit, int minLimit, int maxLimit, double tolerance, double backoff) {
+        this.initialLimit = initialLimit;
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.tolerance = tolerance;
+        this.backoff = backoff;
+    }
+
+    synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    synchronized void onComplete(long latencyNanos, boolean success) {
+        inFlight--;
+        if (++samples >= BASELINE_WINDOW) {
+            samples = 0;
+            baselineNanos = Long.MAX_VALUE;
+        }
+        if (success) {
+            baselineNanos = Math.min(baselineNanos, latencyNanos);
+        }
+        if (!success || latencyNanos > tolerance * baselineNanos) {
+            limit = Math.max(minLimit, limit * backoff);
+        } else {
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    synchronized int limit() {
+        return (int) limit;
+    }
+
+    synchronized int inFlight() {
+        return inFlight;
+    }
+
+    /// The calls in flight still count, until they complete.
+    synchronized void reset() {
+        limit = initialLimit;
+        baselineNanos = Long.MAX_VALUE;
+        samples = 0;
+    }
+}
+
+/// A request the backend answered with an error `status`, e.g. a missing index (404),
+/// only a 5xx one tells that the backend is unhealthy.
+final class BackendResponseException extends IOException {
+    private final int status;
+
+    BackendResponseException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    int status() {
+        return status;
+    }
+}
+
+/// Thrown when a call isn't even attempted, because the backend is considered unavailable.
+final class BackendUnavailableException extends RuntimeException {
+    BackendUnavailableException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.text.Normalizer;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/// Cache of whole hybrid search results, so popular queries don't hit Elasticsearch at all.
+///
+/// Entries are keyed by (index, normalised query, search profile) and hold the future result,
+/// so concurrent identical requests are coalesced into a single search.
+/// The least recently used entries are evicted once `maxEntries` is exceeded.
+///
+/// An entry is used only as long as the generation of its index didn't change,
+/// the generation is checked at most once per `generationCheckInterval` for each index.
+/// When it can't be checked, e.g. the API key isn't allowed to, the cache of the index is bypassed for that interval.
+/// Entries containing a given document can also be dropped explicitly with [#invalidateFullPath(String)],
+/// e.g. right after a price update, also while they are being searched for. Failed and partial results are never kept.
+final class ResultCache {
+
+    record Key(String index, String query, String profile) {
+    }
+
+    private static final Pattern WHITESPACES = Pattern.compile("\\s+");
+    static final long UNKNOWN_GENERATION = Long.MIN_VALUE;
+
+    private final int maxEntries;
+    private final long generationCheckNanos;
+    private final LongSupplier nanoClock;
+    private final Consumer<String> onIndexChange;
+
+    // guarded by this
+    private final LinkedHashMap<Key, Entry> entries;
+    private final Map<String, Set<Key>> keysByFullPath = new HashMap<>();
+    private final Set<Entry> loading = new HashSet<>();
+
+    private final Map<String, CheckedGeneration> generations = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    ResultCache(int maxEntries, Duration generationCheckInterval, LongSupplier nanoClock) {
+        this(maxEntries, generationCheckInterval, nanoClock, _ -> {
+        });
+    }
+
+    /// `onIndexChange` is told about every index whose generation is found changed, e.g. to drop other caches of it.
+    ResultCache(int maxEntries, Duration generationCheckInterval, LongSupplier nanoClock, Consumer<String> onIndexChange) {
+        this.maxEntries = maxEntries;
+        this.generationCheckNanos = generationCheckInterval.toNanos();
+        this.nanoClock = nanoClock;
+        this.onIndexChange = onIndexChange;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /// Lexical search on `filename` is case-sensitive, so only whitespace and Unicode composition are normalised.
+    static String normalise(String query) {
+        return WHITESPACES.matcher(Normalizer.normalize(query, Normalizer.Form.NFC).strip()).replaceAll(" ");
+    }
+
+    /// Returns the cached result for the key, or the result of `search`, which is then cached.
+    /// The index generation is obtained asynchronously, so a slow cluster doesn't block the caller;
+    /// when it can't be obtained, the cache is bypassed.
+    CompletableFuture<SearchResult> get(Key key, Function<String, CompletableFuture<Long>> indexGeneration,
+                                        Supplier<CompletableFuture<SearchResult>> search) {
+        return currentGeneration(key.index(), indexGeneration)
+            .thenCompose(generation -> get(key, generation, search));
+    }
+
+    private CompletableFuture<SearchResult> get(Key key, long generation, Supplier<CompletableFuture<SearchResult>> search) {
+        if (generation == UNKNOWN_GENERATION) {
+            misses.increment();
+            return search.get();
+        }
+        Entry entry;
+        synchronized (this) {
+            Entry existing = entries.get(key);
+            if (existing != null && existing.generation == generation) {
+                hits.increment();
+                return existing.result;
+            }
+            if (existing != null) {
+                remove(key, existing);
+            }
+            entry = new Entry(generation);
+            entries.put(key, entry);
+            loading.add(entry);
+            evictOverflow();
+        }
+        misses.increment();
+        CompletableFuture<SearchResult> loaded;
+        try {
+            loaded = search.get();
+        } catch (RuntimeException e) {
+            loaded = CompletableFuture.failedFuture(e);
+        }
+        // the bookkeeping and the completion of the shared entry are in one callback, so they happen in this order:
+        // waiters see a consistent cache, e.g. a document invalidated right after `join()` is already known
+        loaded.whenComplete((result, ex) -> {
+            synchronized (this) {
+                loading.remove(entry);
+                if (ex != null || result.partial() || containsInvalidated(result, entry)) {
+                    remove(key, entry);
+                } else if (entries.get(key) == entry) {
+                    entry.fullPaths = result.items().stream().map(CatalogueItem::fullPath).toList();
+                    entry.fullPaths.forEach(fullPath -> keysByFullPath.computeIfAbsent(fullPath, _ -> new HashSet<>()).add(key));
+                }
+            }
+            if (ex != null) {
+                entry.result.completeExceptionally(ex);
+            } else {
+                entry.result.complete(result);
+            }
+        });
+        return entry.result;
+    }
+
+    /// Drops all cached results which contain the document with the given `full-path`.
+    synchronized void invalidateFullPath(String fullPath) {
+        loading.forEach(entry -> entry.invalidatedWhileLoading.add(fullPath));
+        Set<Key> keys = keysByFullPath.remove(fullPath);
+        if (keys != null) {
+            keys.forEach(key -> {
+                Entry entry = entries.get(key);
+                if (entry != null) {
+                    remove(key, entry);
+                }
+            });
+        }
+    }
+
+    /// Drops all cached results of the index, e.g. after a bulk import.
+    synchronized void invalidateIndex(String index) {
+        generations.remove(index);
+        var iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var next = iterator.next();
+            if (next.getKey().index().equals(index)) {
+                iterator.remove();
+                forgetFullPaths(next.getKey(), next.getValue());
+            }
+        }
+    }
+
+    /// Drops all cached results.
+    synchronized void clear() {
+        entries.clear();
+        keysByFullPath.clear();
+        generations.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    long hits() {
+        return hits.sum();
+    }
+
+    long misses() {
+        return misses.sum();
+    }
+
+    /// The generation of the index, looked up with `indexGeneration` at most once per check interval,
+    /// [#UNKNOWN_GENERATION] when it can't be. Other caches of the index use it too, so they all see the same changes.
+    CompletableFuture<Long> currentGeneration(String index, Function<String, CompletableFuture<Long>> indexGeneration) {
+        long now = nanoClock.getAsLong();
+        CheckedGeneration checked = generations.get(index);
+        if (checked != null && now - checked.checkedAt() < generationCheckNanos) {
+            return CompletableFuture.completedFuture(checked.generation());
+        }
+        CompletableFuture<Long> lookup;
+        try {
+            lookup = indexGeneration.apply(index);
+        } catch (RuntimeException e) {
+            lookup = CompletableFuture.failedFuture(e);
+        }
+        return lookup.handle((generation, ex) -> {
+            long found = ex != null ? UNKNOWN_GENERATION : generation;
+            if (recordGeneration(index, new CheckedGeneration(found, now))) {
+                onIndexChange.accept(index);
+            }
+            return found;
+        });
+    }
+
+    /// Keeps the checked generation unless a later check is already recorded,
+    /// and tells whether it's a change, so of the concurrent checks finding it only one reports it.
+    private boolean recordGeneration(String index, CheckedGeneration checked) {
+        while (true) {
+            CheckedGeneration previous = generations.get(index);
+            if (previous == null) {
+                if (generations.putIfAbsent(index, checked) == null) {
+                    return false;
+                }
+            } else if (previous.checkedAt() - checked.checkedAt() > 0) {
+                return false;
+            } else if (generations.replace(index, previous, checked)) {
+                return previous.generation() != UNKNOWN_GENERATION && checked.generation() != UNKNOWN_GENERATION
+                    && previous.generation() != checked.generation();
+            }
+        }
+    }
+
+    // must hold the lock
+    private static boolean containsInvalidated(SearchResult result, Entry entry) {
+        return !entry.invalidatedWhileLoading.isEmpty()
+            && result.items().stream().map(CatalogueItem::fullPath).anyMatch(entry.invalidatedWhileLoading::contains);
+    }
+
+    // must hold the lock
+    private void evictOverflow() {
+        var eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries && eldest.hasNext()) {
+            var next = eldest.next();
+            eldest.remove();
+            forgetFullPaths(next.getKey(), next.getValue());
+        }
+    }
+
+    // must hold the lock
+    private void remove(Key key, Entry entry) {
+        if (entries.remove(key, entry)) {
+            forgetFullPaths(key, entry);
+        }
+    }
+
+    // must hold the lock
+    private void forgetFullPaths(Key key, Entry entry) {
+        entry.fullPaths.forEach(fullPath -> {
+            Set<Key> keys = keysByFullPath.get(fullPath);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                keysByFullPath.remove(fullPath);
+            }
+        });
+    }
+
+    private static final class Entry {
+        final CompletableFuture<SearchResult> result = new CompletableFuture<>();
+        final long generation;
+        // full paths of the cached items, set (under the cache lock) once the result is known
+        List<String> fullPaths = List.of();
+        // full paths invalidated (under the cache lock) while the result was being searched for
+        final Set<String> invalidatedWhileLoading = new HashSet<>();
+
+        Entry(long generation) {
+            this.generation = generation;
+        }
+    }
+
+    private record CheckedGeneration(long generation, long checkedAt) {
+    }
+}
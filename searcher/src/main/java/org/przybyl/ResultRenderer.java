@@ -0,0 +1,146 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/// Renders batches of search results, one per line, as text (identical to [SearchResult#toString()]) or NDJSON.
+///
+/// The text is built in a reusable `StringBuilder`, encoded into a reusable buffer and written to the channel
+/// at once, so rendering a batch allocates next to nothing, no matter its size. The buffers grow when needed and are kept.
+///
+/// Not thread-safe, use one renderer per thread.
+final class ResultRenderer {
+
+    enum Format {
+        /// `apple: [apple.jpg (12.34 USD), free.jpg (priceless)]`
+        TEXT,
+        /// `{"query":"apple","items":[{"filename":"apple.jpg","full-path":"...","price":{"value":12.34,"currency":"USD"}}],"partial":false}`,
+        /// with `"cursor":"..."` at the end, when there's a next page
+        NDJSON
+    }
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final StringBuilder text = new StringBuilder(8 * 1024);
+    // like System.out, replaces what can't be encoded (e.g. a lone surrogate) instead of failing
+    private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private ByteBuffer bytes = ByteBuffer.allocate(16 * 1024);
+
+    /// Writes the results, each one followed by a new line.
+    void write(List<SearchResult> results, Format format, WritableByteChannel channel) throws IOException {
+        text.setLength(0);
+        for (SearchResult result : results) {
+            switch (format) {
+                case TEXT -> result.appendTo(text);
+                case NDJSON -> appendJson(result, text);
+            }
+            text.append('\n');
+        }
+        ByteBuffer encoded = encode(text);
+        while (encoded.hasRemaining()) {
+            channel.write(encoded);
+        }
+    }
+
+    static StringBuilder appendJson(SearchResult result, StringBuilder out) {
+        out.append("{\"query\":");
+        appendJsonString(result.query(), out);
+        out.append(",\"items\":[");
+        List<CatalogueItem> items = result.items();
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                out.append(',');
+            }
+            CatalogueItem item = items.get(i);
+            out.append("{\"filename\":");
+            appendJsonString(item.filename(), out);
+            out.append(",\"full-path\":");
+            appendJsonString(item.fullPath(), out);
+            out.append(",\"price\":");
+            if (item.price() == null) {
+                out.append("null");
+            } else {
+                item.price().appendValueTo(out.append("{\"value\":")).append(",\"currency\":");
+                appendJsonString(item.price().currency(), out);
+                out.append('}');
+            }
+            out.append('}');
+        }
+        out.append("],\"partial\":").append(result.partial());
+        if (result.cursor() != null) {
+            out.append(",\"cursor\":");
+            appendJsonString(result.cursor(), out);
+        }
+        return out.append('}');
+    }
+
+    private static void appendJsonString(String value, StringBuilder out) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> out.append("\\\"");
+                case '\\' -> out.append("\\\\");
+                case '\n' -> out.append("\\n");
+                case '\r' -> out.append("\\r");
+                case '\t' -> out.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        out.append("\\u00").append(HEX[c >> 4]).append(HEX[c & 0xF]);
+                    } else {
+                        out.append(c);
+                    }
+                }
+            }
+        }
+        out.append('"');
+    }
+
+    private ByteBuffer encode(CharSequence chars) throws CharacterCodingException {
+        // big enough for any text, so it's encoded in one go
+        int needed = (int) (chars.length() * encoder.maxBytesPerChar());
+        if (bytes.capacity() < needed) {
+            bytes = ByteBuffer.allocate(needed);
+        }
+        bytes.clear();
+        encoder.reset();
+        CoderResult result = encoder.encode(CharBuffer.wrap(chars), bytes, true);
+        if (result.isUnderflow()) {
+            result = encoder.flush(bytes);
+        }
+        if (!result.isUnderflow()) {
+            result.throwException();
+        }
+        return bytes.flip();
+    }
+}
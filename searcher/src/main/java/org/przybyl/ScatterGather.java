@@ -0,0 +1,143 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/// The hybrid search fanned out to several catalogue shards, e.g. one cluster per region.
+///
+/// Both searches run against every [Target] in parallel, and all their results are merged in a single, weighted RRF.
+/// The results don't wait for the slowest target: once `quorum` targets have answered, the others get
+/// `gracePeriod` more, and whatever hasn't arrived by then is left out, the result is flagged as partial.
+/// Each target has its own guard, so a slow or failing cluster is timed out, and eventually skipped, on its own.
+final class ScatterGather {
+
+    /// An index of a cluster, its results weigh `weight` in the fusion.
+    record Target(String name, ElasticsearchClient client, String index, double weight, ResilientBackend guard) {
+
+        /// A target with the default guard, giving up on a search after `timeout`.
+        static Target of(String name, ElasticsearchClient client, String index, double weight, Duration timeout) {
+            return new Target(name, client, index, weight, ResilientBackend.withDefaults("elasticsearch " + name, timeout));
+        }
+    }
+
+    private static final Logger LOG = LoggerFactory.getLogger(ScatterGather.class);
+
+    private final List<Target> targets;
+    private final int quorum;
+    private final Duration gracePeriod;
+
+    ScatterGather(List<Target> targets, int quorum, Duration gracePeriod) {
+        if (targets.isEmpty() || quorum < 1 || quorum > targets.size()) {
+            throw new IllegalArgumentException("Quorum of " + quorum + " out of " + targets.size() + " targets");
+        }
+        this.targets = List.copyOf(targets);
+        this.quorum = quorum;
+        this.gracePeriod = gracePeriod;
+    }
+
+    CompletableFuture<SearchResult> search(String query, SearchFilter filter, Executor executor) {
+        // when the encoder is unavailable, the vector is null and only the classic search is done
+        return EnterpriseySearcher.obtainTextEmbedding(query)
+            .exceptionally(ResilientBackend.fallbackIfUnavailable(() -> null))
+            .thenCompose(vector -> gather(new QueryWithVector(query, vector, filter), executor));
+    }
+
+    private CompletableFuture<SearchResult> gather(QueryWithVector qwv, Executor executor) {
+        List<CompletableFuture<List<CatalogueItem>>> legs = new ArrayList<>(2 * targets.size());
+        List<Double> weights = new ArrayList<>(2 * targets.size());
+        CompletableFuture<Void> gathered = new CompletableFuture<>();
+        AtomicInteger answered = new AtomicInteger();
+        AtomicInteger finished = new AtomicInteger();
+        for (Target target : targets) {
+            CompletableFuture<List<CatalogueItem>> knn = qwv.getVector() == null
+                ? CompletableFuture.completedFuture(null)
+                : leg(target, "kNN", executor,
+                () -> EnterpriseySearcher.performKnnSearch(qwv.getVector(), qwv.getFilter(), target.index(), target.client()));
+            CompletableFuture<List<CatalogueItem>> classic = leg(target, "classic", executor,
+                () -> EnterpriseySearcher.performClassicSearch(qwv.getQuery(), qwv.getFilter(), target.index(), target.client()));
+            legs.add(knn);
+            legs.add(classic);
+            weights.add(target.weight());
+            weights.add(target.weight());
+            CompletableFuture.allOf(knn, classic).whenComplete((_, _) -> {
+                // a target counts towards the quorum only when it has actually answered
+                if ((knn.join() != null || classic.join() != null) && answered.incrementAndGet() == quorum) {
+                    CompletableFuture.delayedExecutor(gracePeriod.toNanos(), TimeUnit.NANOSECONDS)
+                        .execute(() -> gathered.complete(null));
+                }
+                if (finished.incrementAndGet() == targets.size()) {
+                    gathered.complete(null);
+                }
+            });
+        }
+        return gathered.thenApply(_ -> merge(qwv, legs, weights));
+    }
+
+    private SearchResult merge(QueryWithVector qwv, List<CompletableFuture<List<CatalogueItem>>> legs, List<Double> weights) {
+        List<List<CatalogueItem>> available = new ArrayList<>();
+        List<Double> availableWeights = new ArrayList<>();
+        for (int i = 0; i < legs.size(); i++) {
+            List<CatalogueItem> found = legs.get(i).getNow(null);
+            if (found != null) {
+                available.add(found);
+                availableWeights.add(weights.get(i));
+            } else {
+                LOG.debug("Leaving out the {} search of {}", i % 2 == 0 ? "kNN" : "classic", targets.get(i / 2).name());
+            }
+        }
+        if (available.isEmpty()) {
+            throw new BackendUnavailableException("No search could be run on any target for: " + qwv.getQuery());
+        }
+        var combined = EnterpriseySearcher.combineUsingRRF(available, availableWeights, 60, EnterpriseySearcher.TOP_K);
+        return new SearchResult(qwv.getQuery(), combined, available.size() < legs.size());
+    }
+
+    /// Completes with `null` when the search couldn't be run, or didn't complete within the timeout of the target.
+    private static CompletableFuture<List<CatalogueItem>> leg(Target target, String kind, Executor executor, Search search) {
+        return target.guard().call(() -> CompletableFuture.supplyAsync(() -> {
+                try {
+                    return search.run();
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, executor))
+            .exceptionally(ex -> {
+                // one failing cluster must not fail the whole search
+                Throwable cause = ex instanceof CompletionException && ex.getCause() != null ? ex.getCause() : ex;
+                LOG.warn("The {} search of {} failed: {}", kind, target.name(), cause.toString());
+                return null;
+            });
+    }
+
+    @FunctionalInterface
+    private interface Search {
+        List<CatalogueItem> run() throws IOException;
+    }
+}
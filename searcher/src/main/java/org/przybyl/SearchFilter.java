@@ -0,0 +1,130 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch._types.query_dsl.Query;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+/// Price constraints of a search, e.g. "under 5 EUR".
+///
+/// They are pushed down into Elasticsearch, into the `filter` of the kNN search and into the lexical query,
+/// so the `k` nearest neighbours are searched for among the matching items only,
+/// instead of dropping the non-matching ones from a (much larger) result afterward.
+///
+/// Any bound may be `null`. Items without a price (priceless) match no bound,
+/// so what happens to them is decided explicitly by [PricelessItems].
+record SearchFilter(BigDecimal minPrice, BigDecimal maxPrice, String currency, PricelessItems pricelessItems) {
+
+    enum PricelessItems {
+        /// priceless items are found as well, no matter the price constraints
+        INCLUDE,
+        /// only items with a price are found
+        EXCLUDE,
+        /// only priceless items are found, there can't be any price constraints then
+        ONLY
+    }
+
+    static final SearchFilter NONE = new SearchFilter(null, null, null, PricelessItems.INCLUDE);
+
+    private static final String VALUE_FIELD = "price.value";
+    private static final String CURRENCY_FIELD = "price.currency";
+    private static final BigDecimal HALF_CENT = new BigDecimal("0.005");
+
+    SearchFilter {
+        if (pricelessItems == null) {
+            throw new IllegalArgumentException("The way of handling priceless items must be given");
+        }
+        if (minPrice != null && maxPrice != null && minPrice.compareTo(maxPrice) > 0) {
+            throw new IllegalArgumentException("Min price " + minPrice + " greater than max price " + maxPrice);
+        }
+        if (pricelessItems == PricelessItems.ONLY && hasPriceConstraints(minPrice, maxPrice, currency)) {
+            throw new IllegalArgumentException("Priceless items can't match price constraints");
+        }
+    }
+
+    /// Items with a price within the bounds (inclusive) in the given currency; any of them may be `null`.
+    static SearchFilter price(BigDecimal minPrice, BigDecimal maxPrice, String currency) {
+        return new SearchFilter(minPrice, maxPrice, currency, PricelessItems.EXCLUDE);
+    }
+
+    SearchFilter withPricelessItems(PricelessItems pricelessItems) {
+        return new SearchFilter(minPrice, maxPrice, currency, pricelessItems);
+    }
+
+    /// The Elasticsearch query matching exactly the items passing this filter, empty when all items pass.
+    Optional<Query> toQuery() {
+        return switch (pricelessItems) {
+            case INCLUDE -> hasPriceConstraints(minPrice, maxPrice, currency)
+                ? Optional.of(Query.of(q -> q.bool(b -> b.should(pricedQuery(), pricelessQuery()).minimumShouldMatch("1"))))
+                : Optional.empty();
+            case EXCLUDE -> Optional.of(pricedQuery());
+            case ONLY -> Optional.of(pricelessQuery());
+        };
+    }
+
+    /// Tells searches with different filters apart, e.g. in caches.
+    String profile() {
+        return "price[" + (minPrice == null ? "" : minPrice.stripTrailingZeros().toPlainString())
+            + ".." + (maxPrice == null ? "" : maxPrice.stripTrailingZeros().toPlainString())
+            + (currency == null ? "" : " " + currency)
+            + ", priceless=" + pricelessItems.name().toLowerCase() + "]";
+    }
+
+    private Query pricedQuery() {
+        List<Query> clauses = new ArrayList<>();
+        clauses.add(Query.of(q -> q.exists(e -> e.field(VALUE_FIELD))));
+        if (minPrice != null || maxPrice != null) {
+            clauses.add(Query.of(q -> q.range(r -> r.number(n -> {
+                n.field(VALUE_FIELD);
+                if (minPrice != null) {
+                    n.gte(lowerBound(minPrice));
+                }
+                if (maxPrice != null) {
+                    n.lte(upperBound(maxPrice));
+                }
+                return n;
+            }))));
+        }
+        if (currency != null) {
+            clauses.add(Query.of(q -> q.term(t -> t.field(CURRENCY_FIELD).value(currency))));
+        }
+        return Query.of(q -> q.bool(b -> b.filter(clauses)));
+    }
+
+    // price.value is a scaled_float, Elasticsearch rounds the scaled bounds inwards, so e.g. 0.29 (28.999... cents as a double)
+    // would miss the items at exactly 0.29; half a cent beyond the whole cents survives the scaling
+    private static double lowerBound(BigDecimal minPrice) {
+        return minPrice.setScale(Price.SCALE, RoundingMode.CEILING).subtract(HALF_CENT).doubleValue();
+    }
+
+    private static double upperBound(BigDecimal maxPrice) {
+        return maxPrice.setScale(Price.SCALE, RoundingMode.FLOOR).add(HALF_CENT).doubleValue();
+    }
+
+    private static Query pricelessQuery() {
+        return Query.of(q -> q.bool(b -> b.mustNot(m -> m.exists(e -> e.field(VALUE_FIELD)))));
+    }
+
+    private static boolean hasPriceConstraints(BigDecimal minPrice, BigDecimal maxPrice, String currency) {
+        return minPrice != null || maxPrice != null || currency != null;
+    }
+}
@@ -0,0 +1,257 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.random.RandomGenerator;
+
+/// Approximate cache of kNN results, keyed by the query embedding rather than by the query text.
+///
+/// The multilingual CLIP text model maps "apple", "Apfel" and "pomme" to nearly identical vectors,
+/// so a query whose vector has cosine similarity of at least `threshold` with a previously answered one
+/// reuses that kNN result, and the Elasticsearch kNN call is saved.
+///
+/// The vectors are kept normalised in a single flat array, which is scanned with
+/// [VectorSimilarity#dotProduct(float[], float[], int)]; when `capacity` is reached the oldest entries are overwritten.
+/// The index and the search profile must match as well, so results of different searches never mix.
+///
+/// The results hold the items as they were, prices included, so they have to be dropped whenever the documents change.
+/// Each one is kept with the generation of the index it was found in, and is used only in that same generation:
+/// the first lookup in a new generation drops the older results of the index, and results found in an older one
+/// aren't kept anymore. They can also be dropped with [#invalidateFullPath(String)] or [#invalidateIndex(String)],
+/// the same as the [ResultCache].
+///
+/// A fraction (`verifyRate`) of the hits is meant to be verified by the caller, running the real kNN search
+/// and reporting with [#recordVerification(List, List)], which gives the false hit rate.
+final class SemanticQueryCache {
+
+    record Stats(long lookups, long hits, long verifications, long falseHits) {
+        double hitRate() {
+            return lookups == 0 ? 0 : (double) hits / lookups;
+        }
+
+        double falseHitRate() {
+            return verifications == 0 ? 0 : (double) falseHits / verifications;
+        }
+
+        @Override
+        public String toString() {
+            return "Stats[lookups=%d, hits=%d (%.1f%%), verifications=%d, falseHits=%d (%.1f%%)]"
+                .formatted(lookups, hits, 100 * hitRate(), verifications, falseHits, 100 * falseHitRate());
+        }
+    }
+
+    private final int capacity;
+    private final int dimensions;
+    private final float threshold;
+    private final double verifyRate;
+    // used by many threads at once
+    private final RandomGenerator random;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    // guarded by lock
+    private final float[] vectors;
+    // null when the entry was invalidated
+    private final String[] indices;
+    private final String[] profiles;
+    private final long[] generations;
+    private final List<?>[] results;
+    // the latest generation of each index, as seen by the lookups
+    private final Map<String, Long> indexGenerations = new HashMap<>();
+    private int size;
+    private int next;
+
+    private final LongAdder lookups = new LongAdder();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder verifications = new LongAdder();
+    private final LongAdder falseHits = new LongAdder();
+
+    SemanticQueryCache(int capacity, int dimensions, float threshold, double verifyRate, RandomGenerator random) {
+        this.capacity = capacity;
+        this.dimensions = dimensions;
+        this.threshold = threshold;
+        this.verifyRate = verifyRate;
+        this.random = random;
+        this.vectors = new float[capacity * dimensions];
+        this.indices = new String[capacity];
+        this.profiles = new String[capacity];
+        this.generations = new long[capacity];
+        this.results = new List<?>[capacity];
+    }
+
+    /// Returns the kNN result of the most similar cached query in the current `generation` of the index,
+    /// when it's similar enough, `null` otherwise.
+    List<CatalogueItem> lookup(String index, long generation, String profile, float[] vector) {
+        lookups.increment();
+        if (vector.length != dimensions) {
+            return null;
+        }
+        float[] query = VectorSimilarity.normalised(vector);
+        lock.readLock().lock();
+        try {
+            if (isCurrent(index, generation)) {
+                return mostSimilar(index, generation, profile, query);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        changeGeneration(index, generation);
+        return null;
+    }
+
+    // must hold the lock
+    @SuppressWarnings("unchecked")
+    private List<CatalogueItem> mostSimilar(String index, long generation, String profile, float[] query) {
+        int best = -1;
+        float bestSimilarity = threshold;
+        for (int i = 0; i < size; i++) {
+            if (!index.equals(indices[i]) || generations[i] != generation || !profile.equals(profiles[i])) {
+                continue;
+            }
+            float similarity = VectorSimilarity.dotProduct(query, vectors, i * dimensions);
+            if (similarity >= bestSimilarity) {
+                bestSimilarity = similarity;
+                best = i;
+            }
+        }
+        if (best < 0) {
+            return null;
+        }
+        hits.increment();
+        return (List<CatalogueItem>) results[best];
+    }
+
+    // must hold the lock
+    private boolean isCurrent(String index, long generation) {
+        Long current = indexGenerations.get(index);
+        return current != null && current == generation;
+    }
+
+    /// Keeps the kNN result found in the `generation` of the index, unless the index has changed since.
+    void put(String index, long generation, String profile, float[] vector, List<CatalogueItem> knnResult) {
+        if (vector.length != dimensions) {
+            return;
+        }
+        float[] normalised = VectorSimilarity.normalised(vector);
+        lock.writeLock().lock();
+        try {
+            if (indexGenerations.getOrDefault(index, generation) != generation) {
+                return;
+            }
+            indexGenerations.put(index, generation);
+            System.arraycopy(normalised, 0, vectors, next * dimensions, dimensions);
+            indices[next] = index;
+            generations[next] = generation;
+            profiles[next] = profile;
+            results[next] = List.copyOf(knnResult);
+            next = (next + 1) % capacity;
+            size = Math.min(size + 1, capacity);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /// Drops all cached results which contain the document with the given `full-path`, e.g. right after a price update.
+    void invalidateFullPath(String fullPath) {
+        lock.writeLock().lock();
+        try {
+            for (int i = 0; i < size; i++) {
+                if (indices[i] != null && results[i].stream().anyMatch(item -> ((CatalogueItem) item).fullPath().equals(fullPath))) {
+                    invalidate(i);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /// Drops all cached results of the index, e.g. when its generation changes.
+    void invalidateIndex(String index) {
+        lock.writeLock().lock();
+        try {
+            indexGenerations.remove(index);
+            for (int i = 0; i < size; i++) {
+                if (index.equals(indices[i])) {
+                    invalidate(i);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void changeGeneration(String index, long generation) {
+        lock.writeLock().lock();
+        try {
+            Long previous = indexGenerations.put(index, generation);
+            if (previous != null && previous != generation) {
+                for (int i = 0; i < size; i++) {
+                    if (index.equals(indices[i]) && generations[i] != generation) {
+                        invalidate(i);
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /// Drops all cached results.
+    void clear() {
+        lock.writeLock().lock();
+        try {
+            indexGenerations.clear();
+            for (int i = 0; i < size; i++) {
+                invalidate(i);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // must hold the write lock, the slot is reused when its turn comes
+    private void invalidate(int i) {
+        indices[i] = null;
+        profiles[i] = null;
+        results[i] = null;
+    }
+
+    /// Tells whether the caller should verify the hit it just got.
+    boolean shouldVerify() {
+        return verifyRate > 0 && random.nextDouble() < verifyRate;
+    }
+
+    /// The hit was false, when the real kNN search returns other items than the cached ones.
+    void recordVerification(List<CatalogueItem> cached, List<CatalogueItem> actual) {
+        verifications.increment();
+        var cachedPaths = new HashSet<>(cached.stream().map(CatalogueItem::fullPath).toList());
+        var actualPaths = new HashSet<>(actual.stream().map(CatalogueItem::fullPath).toList());
+        if (!cachedPaths.equals(actualPaths)) {
+            falseHits.increment();
+        }
+    }
+
+    Stats stats() {
+        return new Stats(lookups.sum(), hits.sum(), verifications.sum(), falseHits.sum());
+    }
+}
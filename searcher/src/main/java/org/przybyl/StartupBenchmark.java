@@ -0,0 +1,170 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/// Compares the time to the first result of the command line searcher, with and without the AOT cache.
+///
+/// Each run is a new JVM running [EnterpriseySearcher], against the local [StubBackends] started by the benchmark,
+/// timed from starting the process until its first line of results, and until it exits.
+/// The runs with and without the cache alternate, so both suffer the same from whatever else the machine does.
+///
+/// The cache is used only with the class path it was trained with, so that's the one read from `--classpath-file`.
+/// When the JVM can't use the cache, it warns and goes on without it, so similar times are worth a look with `-Xlog:aot`.
+///
+/// Options (all optional):
+/// - `--classpath-file <file>` written by [StartupTraining], otherwise the class path of the benchmark is used
+/// - `--cache-option <JVM option>` `-XX:AOTCache=target/searcher.aot` by default, e.g. `-XX:SharedArchiveFile=<file>` for AppCDS
+/// - `--jvm-options <space separated>` given to both, `--enable-preview --add-modules jdk.incubator.vector` by default
+/// - `--runs <count>` runs of each, `10` by default, after one discarded run of each
+/// - `--data <bulk files, comma separated>` the documents, otherwise `--docs <count>` synthetic ones, `1000` by default
+public class StartupBenchmark {
+
+    // of stderr, when a run fails
+    private static final int ERROR_LINES = 20;
+
+    /// One run, in nanoseconds since starting the process.
+    record Run(long firstResult, long exit) {
+    }
+
+    /// All the runs of one setting.
+    record Summary(String setting, List<Run> runs) {
+
+        long[] firstResults() {
+            return runs.stream().mapToLong(Run::firstResult).sorted().toArray();
+        }
+
+        long[] exits() {
+            return runs.stream().mapToLong(Run::exit).sorted().toArray();
+        }
+
+        @Override
+        public String toString() {
+            return "%s, %d runs%n  first result: %s%n  exit:         %s".formatted(
+                setting, runs.size(), percentiles(firstResults()), percentiles(exits()));
+        }
+
+        private static String percentiles(long[] sorted) {
+            return "min=%.0fms p50=%.0fms max=%.0fms".formatted(LoadGenerator.Report.percentile(sorted, 0) / 1e6,
+                LoadGenerator.Report.percentile(sorted, 50) / 1e6, LoadGenerator.Report.percentile(sorted, 100) / 1e6);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = LoadGenerator.parseOptions(args);
+        String classPath = options.containsKey("classpath-file")
+            ? Files.readString(Path.of(options.get("classpath-file"))).strip()
+            : System.getProperty("java.class.path");
+        String cacheOption = options.getOrDefault("cache-option", "-XX:AOTCache=target/searcher.aot");
+        List<String> jvmOptions = Arrays.asList(
+            options.getOrDefault("jvm-options", "--enable-preview --add-modules jdk.incubator.vector").split(" "));
+        int runs = Integer.parseInt(options.getOrDefault("runs", "10"));
+        List<Path> bulkFiles = options.containsKey("data")
+            ? Arrays.stream(options.get("data").split(",")).map(Path::of).toList()
+            : List.of();
+
+        try (StubBackends.Stub encoder = StubBackends.startEncoder(Duration.ZERO);
+             StubBackends.Stub elasticsearch = StubBackends.startElasticsearch("catalogue", bulkFiles,
+                 Integer.parseInt(options.getOrDefault("docs", "1000")), Duration.ZERO)) {
+            Map<String, String> environment = environment(encoder, elasticsearch);
+            List<String> withoutCache = command(classPath, jvmOptions);
+            List<String> withCache = command(classPath, append(jvmOptions, cacheOption));
+            Summary without = new Summary("without cache", new ArrayList<>());
+            Summary with = new Summary("with " + cacheOption, new ArrayList<>());
+            // the first runs fill the page cache of the OS, for both
+            measure(withoutCache, environment);
+            measure(withCache, environment);
+            for (int run = 0; run < runs; run++) {
+                without.runs().add(measure(withoutCache, environment));
+                with.runs().add(measure(withCache, environment));
+            }
+            System.out.println(without);
+            System.out.println(with);
+            System.out.printf("Time to first result, p50: %.2fx faster with the cache%n",
+                (double) LoadGenerator.Report.percentile(without.firstResults(), 50)
+                    / LoadGenerator.Report.percentile(with.firstResults(), 50));
+        }
+    }
+
+    /// The environment making [EnterpriseySearcher] use the stubs.
+    static Map<String, String> environment(StubBackends.Stub encoder, StubBackends.Stub elasticsearch) {
+        return Map.of("ES_URL", elasticsearch.url(), "ES_API_KEY", "benchmark", "ENCODER_URL", encoder.url());
+    }
+
+    /// The command running [EnterpriseySearcher] with the `java` of this JVM.
+    static List<String> command(String classPath, List<String> jvmOptions) {
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        command.addAll(jvmOptions);
+        command.addAll(List.of("-cp", classPath, EnterpriseySearcher.class.getName()));
+        return command;
+    }
+
+    /// Runs the command to the end.
+    /// @throws IOException when it fails or prints no results, with the end of what it printed to stderr
+    static Run measure(List<String> command, Map<String, String> environment) throws IOException, InterruptedException {
+        // a file, unlike a pipe, can't fill up and block the process while stdout is being read
+        Path errors = Files.createTempFile("startup-benchmark", ".err");
+        try {
+            ProcessBuilder builder = new ProcessBuilder(command).redirectError(errors.toFile());
+            builder.environment().putAll(environment);
+            long start = System.nanoTime();
+            Process process = builder.start();
+            long firstResult = -1;
+            try (BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8))) {
+                if (output.readLine() != null) {
+                    firstResult = System.nanoTime() - start;
+                }
+                while (output.readLine() != null) {
+                    // drained, so the process isn't blocked on a full pipe
+                }
+            }
+            int exitCode = process.waitFor();
+            long exit = System.nanoTime() - start;
+            if (exitCode != 0 || firstResult < 0) {
+                throw new IOException("The searcher failed with exit code %d: %s%n%s".formatted(exitCode, command, tail(errors, ERROR_LINES)));
+            }
+            return new Run(firstResult, exit);
+        } finally {
+            Files.deleteIfExists(errors);
+        }
+    }
+
+    // the output of the JVM itself is in the platform charset
+    private static String tail(Path file, int lines) throws IOException {
+        List<String> all = new String(Files.readAllBytes(file), Charset.defaultCharset()).lines().toList();
+        return String.join(System.lineSeparator(), all.subList(Math.max(0, all.size() - lines), all.size()));
+    }
+
+    private static List<String> append(List<String> options, String option) {
+        List<String> appended = new ArrayList<>(options);
+        appended.add(option);
+        return appended;
+    }
+}
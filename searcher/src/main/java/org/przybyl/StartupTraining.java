@@ -0,0 +1,67 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/// The training run of the AOT cache, see the `aot-cache` profile of the `pom.xml`.
+///
+/// Does what [EnterpriseySearcher#main(String\[\])] does, a few times over, against the local [StubBackends],
+/// so the classes loaded and linked, and the methods profiled, are the ones of a real search,
+/// but no encoder or Elasticsearch is needed at build time.
+///
+/// The cache can be used only with the same class path, so the class path of the training is written to a file,
+/// for the runs using the cache to read it from.
+///
+/// Options (all optional):
+/// - `--classpath-file <file>` where to write the class path to
+/// - `--data <bulk files, comma separated>` the documents, otherwise `--docs <count>` synthetic ones, `1000` by default
+/// - `--rounds <count>` how many times the queries are searched, `3` by default
+public class StartupTraining {
+
+    static final List<String> QUERIES = List.of("orange", "apple", "Heckscheibenwaschanlage", "computer", "basket");
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = LoadGenerator.parseOptions(args);
+        if (options.containsKey("classpath-file")) {
+            Files.writeString(Path.of(options.get("classpath-file")), System.getProperty("java.class.path"));
+        }
+        List<Path> bulkFiles = options.containsKey("data")
+            ? Arrays.stream(options.get("data").split(",")).map(Path::of).toList()
+            : List.of();
+        int rounds = Integer.parseInt(options.getOrDefault("rounds", "3"));
+
+        try (StubBackends.Stub encoder = StubBackends.startEncoder(Duration.ZERO);
+             StubBackends.Stub elasticsearch = StubBackends.startElasticsearch("catalogue", bulkFiles,
+                 Integer.parseInt(options.getOrDefault("docs", "1000")), Duration.ZERO)) {
+            EnterpriseySearcher.setEncoderUrl(encoder.url());
+            for (int round = 0; round < rounds; round++) {
+                // the output of the searches isn't interesting, rendering it is
+                EnterpriseySearcher.runCli(elasticsearch.url(), "training", QUERIES,
+                    Channels.newChannel(OutputStream.nullOutputStream()));
+            }
+        }
+    }
+}
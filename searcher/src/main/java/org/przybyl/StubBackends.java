@@ -0,0 +1,547 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import co.elastic.clients.json.jackson.JacksonJsonpMapper;
+import co.elastic.clients.transport.rest_client.RestClientTransport;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.HttpHost;
+import org.elasticsearch.client.RestClient;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+import java.util.stream.IntStream;
+
+import static org.przybyl.EnterpriseySearcher.OBJECT_MAPPER;
+
+/// Local stand-ins for the Image-Text Encoder and Elasticsearch, so the searcher can be exercised
+/// (load tested, benchmarked, trained) on a plain box, without Docker or a real cluster.
+///
+/// The encoder stub returns a fixed, pseudo-random vector for each text.
+/// The Elasticsearch stand-in keeps the documents of `_bulk` files in memory and answers the requests
+/// the searcher makes: index existence, index stats, and `_search` with exact (brute-force) kNN
+/// and the few query types the searcher uses, also within a point in time and with `search_after`.
+/// The documents can be changed with `_bulk` requests, which are visible right away, as if refreshed.
+///
+/// They're part of the main code, not the tests, because the tools run from the packaged classpath need them too:
+/// [LoadGenerator], [KnnEvaluation], and the AOT training run [StartupTraining]. They need nothing but the JDK
+/// and the libraries the searcher uses anyway.
+final class StubBackends {
+
+    static final int DIMENSIONS = 512;
+    // the scaled_float fields of the mapping, with their scaling factors
+    private static final Map<String, Double> SCALING_FACTORS = Map.of("price.value", 100.0);
+
+    private StubBackends() {
+    }
+
+    /// Starts the encoder stub on a random port, answering after `latency`. Returns its `encode_text` URL.
+    static Stub startEncoder(Duration latency) throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/health", exchange -> respond(exchange, 200, OBJECT_MAPPER.createObjectNode().put("status", "healthy")));
+        server.createContext("/encode_text", exchange -> {
+            JsonNode request = OBJECT_MAPPER.readTree(exchange.getRequestBody());
+            pause(latency);
+            respond(exchange, 200, embeddingResponse(fixedVector(request.path("text").asText())));
+        });
+        server.createContext("/encode_image", exchange -> {
+            // like the encoder, only `image_b64` is supported, the vector is the one of the decoded bytes
+            JsonNode request = OBJECT_MAPPER.readTree(exchange.getRequestBody());
+            byte[] image = Base64.getDecoder().decode(request.path("image_b64").asText());
+            pause(latency);
+            respond(exchange, 200, embeddingResponse(fixedVector(new String(image, StandardCharsets.ISO_8859_1))));
+        });
+        return start(server, "/encode_text");
+    }
+
+    /// Starts the Elasticsearch stand-in on a random port, with the documents of the given `_bulk` files.
+    /// Without files, `syntheticDocuments` random documents are indexed instead.
+    static Stub startElasticsearch(String indexName, List<Path> bulkFiles, int syntheticDocuments, Duration latency) throws IOException {
+        FakeIndex index = new FakeIndex(indexName);
+        if (bulkFiles.isEmpty()) {
+            index.addSynthetic(syntheticDocuments, new Random(42));
+        }
+        for (Path bulkFile : bulkFiles) {
+            index.bulk(bulkFile);
+        }
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            pause(latency);
+            index.handle(exchange);
+        });
+        return start(server, "");
+    }
+
+    /// Creates an Elasticsearch client of the stand-in, the caller is responsible for closing its transport.
+    static ElasticsearchClient elasticsearchClient(Stub elasticsearch) {
+        RestClient restClient = RestClient.builder(HttpHost.create(elasticsearch.url())).build();
+        return new ElasticsearchClient(new RestClientTransport(restClient, new JacksonJsonpMapper()));
+    }
+
+    /// The vector the encoder stub returns for the text: always the same for the same text.
+    static float[] fixedVector(String text) {
+        Random random = new Random(text.hashCode());
+        float[] vector = new float[DIMENSIONS];
+        for (int i = 0; i < DIMENSIONS; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    record Stub(HttpServer server, String url) implements AutoCloseable {
+        @Override
+        public void close() {
+            server.stop(0);
+        }
+    }
+
+    private static Stub start(HttpServer server, String path) {
+        server.setExecutor(Executors.newVirtualThreadPerTaskExecutor());
+        server.start();
+        return new Stub(server, "http://localhost:" + server.getAddress().getPort() + path);
+    }
+
+    private static ObjectNode embeddingResponse(float[] vector) {
+        ObjectNode response = OBJECT_MAPPER.createObjectNode();
+        response.put("success", true);
+        response.put("dimensions", vector.length);
+        ArrayNode embedding = response.putArray("embedding");
+        for (float v : vector) {
+            embedding.add(v);
+        }
+        return response;
+    }
+
+    private static void pause(Duration latency) {
+        if (latency.isZero()) {
+            return;
+        }
+        try {
+            Thread.sleep(latency);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, int status, JsonNode body) throws IOException {
+        try (exchange) {
+            byte[] bytes = body == null ? new byte[0] : OBJECT_MAPPER.writeValueAsBytes(body);
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            exchange.getResponseHeaders().add("X-Elastic-Product", "Elasticsearch");
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                exchange.sendResponseHeaders(status, -1);
+            } else {
+                exchange.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+                exchange.getResponseBody().write(bytes);
+            }
+        }
+    }
+
+    /// A single in-memory index, answering just enough of the Elasticsearch API.
+    private static final class FakeIndex {
+
+        private final String name;
+        // guarded by this
+        private final Map<String, Document> documents = new LinkedHashMap<>();
+        private final AtomicLong operations = new AtomicLong();
+        private final Map<String, List<Document>> pointsInTime = new ConcurrentHashMap<>();
+
+        FakeIndex(String name) {
+            this.name = name;
+        }
+
+        void addSynthetic(int count, Random random) {
+            for (int i = 0; i < count; i++) {
+                ObjectNode document = OBJECT_MAPPER.createObjectNode();
+                String filename = "synthetic-%06d.jpg".formatted(i);
+                document.put("filename", filename);
+                document.put("full-path", "/synthetic/" + filename);
+                document.putObject("price")
+                    .put("currency", random.nextBoolean() ? "EUR" : "USD")
+                    .put("value", random.nextInt(1, 10_000) / 100.0);
+                ArrayNode embedding = document.putArray("embedding");
+                for (int d = 0; d < DIMENSIONS; d++) {
+                    embedding.add((float) random.nextGaussian());
+                }
+                index("synthetic-" + i, document);
+            }
+        }
+
+        /// Applies `index`, `create`, `update` (partial `doc`) and `delete` actions of a `_bulk` file.
+        void bulk(Path bulkFile) throws IOException {
+            try (BufferedReader reader = Files.newBufferedReader(bulkFile)) {
+                bulk(reader);
+            }
+        }
+
+        private void bulk(BufferedReader reader) throws IOException {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isBlank()) {
+                    continue;
+                }
+                JsonNode action = OBJECT_MAPPER.readTree(line);
+                String type = action.fieldNames().next();
+                String id = action.path(type).path("_id").asText("doc-" + operations.get());
+                if (type.equals("delete")) {
+                    delete(id);
+                    continue;
+                }
+                ObjectNode payload = (ObjectNode) OBJECT_MAPPER.readTree(reader.readLine());
+                if (type.equals("update")) {
+                    update(id, (ObjectNode) payload.path("doc"));
+                } else {
+                    index(id, payload);
+                }
+            }
+        }
+
+        synchronized void index(String id, ObjectNode source) {
+            documents.put(id, new Document(source, toVector(source.path("embedding"))));
+            operations.incrementAndGet();
+        }
+
+        synchronized void update(String id, ObjectNode partial) {
+            Document document = documents.get(id);
+            if (document != null) {
+                ObjectNode source = document.source().deepCopy();
+                source.setAll(partial);
+                documents.put(id, new Document(source, toVector(source.path("embedding"))));
+                operations.incrementAndGet();
+            }
+        }
+
+        synchronized void delete(String id) {
+            if (documents.remove(id) != null) {
+                operations.incrementAndGet();
+            }
+        }
+
+        void handle(HttpExchange exchange) throws IOException {
+            String path = exchange.getRequestURI().getPath();
+            String method = exchange.getRequestMethod();
+            try {
+                if (path.equals("/")) {
+                    respond(exchange, 200, info());
+                } else if (path.equals("/" + name) && method.equals("HEAD")) {
+                    respond(exchange, 200, null);
+                } else if (path.equals("/" + name + "/_search")) {
+                    respond(exchange, 200, search(readBody(exchange.getRequestBody()), snapshot()));
+                } else if (path.equals("/" + name + "/_pit") && method.equals("POST")) {
+                    respond(exchange, 200, openPointInTime());
+                } else if (path.equals("/_pit") && method.equals("DELETE")) {
+                    boolean freed = pointsInTime.remove(readBody(exchange.getRequestBody()).path("id").asText()) != null;
+                    respond(exchange, 200, OBJECT_MAPPER.createObjectNode().put("succeeded", true).put("num_freed", freed ? 1 : 0));
+                } else if (path.equals("/_search")) {
+                    // only with a point in time, which tells the index
+                    JsonNode request = readBody(exchange.getRequestBody());
+                    List<Document> pointInTime = pointsInTime.get(request.path("pit").path("id").asText());
+                    if (pointInTime == null) {
+                        respond(exchange, 404, error("search_context_missing_exception", "No point in time: " + request.path("pit")));
+                    } else {
+                        respond(exchange, 200, search(request, pointInTime));
+                    }
+                } else if (path.equals("/" + name + "/_bulk") && method.equals("POST")) {
+                    bulk(new BufferedReader(new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)));
+                    respond(exchange, 200, OBJECT_MAPPER.createObjectNode().put("took", 0).put("errors", false));
+                } else if (path.startsWith("/" + name + "/_stats")) {
+                    respond(exchange, 200, stats());
+                } else {
+                    respond(exchange, 404, error("resource_not_found_exception", "Not supported by the stand-in: " + method + " " + path));
+                }
+            } catch (RuntimeException e) {
+                respond(exchange, 400, error("parsing_exception", String.valueOf(e.getMessage())));
+            }
+        }
+
+        private synchronized List<Document> snapshot() {
+            return List.copyOf(documents.values());
+        }
+
+        private ObjectNode openPointInTime() {
+            String id = "pit-" + UUID.randomUUID();
+            pointsInTime.put(id, snapshot());
+            ObjectNode response = OBJECT_MAPPER.createObjectNode();
+            response.put("id", id);
+            response.putObject("_shards").put("total", 1).put("successful", 1).put("skipped", 0).put("failed", 0);
+            return response;
+        }
+
+        /// Hits are sorted by score, ties broken by the position in the snapshot, like `_shard_doc`,
+        /// and both are returned as the sort values, which `search_after` takes.
+        private JsonNode search(JsonNode request, List<Document> snapshot) {
+            record Scored(JsonNode source, double score, int position) {
+            }
+            List<Scored> found = new ArrayList<>();
+            // the client always sends an array of kNN searches, the searcher uses only one
+            JsonNode knn = request.path("knn").isArray() ? request.path("knn").path(0) : request.path("knn");
+            JsonNode query = request.path("query");
+            if (query.has("knn")) {
+                // the knn query, the same, but within the query
+                knn = query.path("knn");
+                query = MissingNode.getInstance();
+            }
+            Predicate<JsonNode> filter = query.isMissingNode() ? _ -> true : matches(query);
+            if (!knn.isMissingNode()) {
+                // exact search, cosine similarity scored the way Elasticsearch does it
+                float[] queryVector = toVector(knn.path("query_vector"));
+                Predicate<JsonNode> knnFilter = knnFilter(knn.path("filter")).and(filter);
+                IntStream.range(0, snapshot.size())
+                    .filter(i -> knnFilter.test(snapshot.get(i).source()))
+                    .mapToObj(i -> new Scored(snapshot.get(i).source(),
+                        (1 + VectorSimilarity.cosine(queryVector, snapshot.get(i).vector())) / 2, i))
+                    .sorted(Comparator.comparingDouble(Scored::score).reversed())
+                    .limit(knn.path("k").asInt(10))
+                    .forEach(found::add);
+            } else {
+                for (int i = 0; i < snapshot.size(); i++) {
+                    if (filter.test(snapshot.get(i).source())) {
+                        found.add(new Scored(snapshot.get(i).source(), 1.0, i));
+                    }
+                }
+            }
+            JsonNode searchAfter = request.path("search_after");
+            if (searchAfter.isArray()) {
+                double afterScore = searchAfter.path(0).asDouble();
+                int afterPosition = searchAfter.path(1).asInt();
+                found.removeIf(scored -> scored.score() > afterScore
+                    || scored.score() == afterScore && scored.position() <= afterPosition);
+            }
+            boolean sorted = request.has("sort") || request.has("pit");
+            int size = request.path("size").asInt(10);
+            List<String> includes = new ArrayList<>();
+            request.path("_source").path("includes").forEach(include -> includes.add(include.asText()));
+
+            ObjectNode response = OBJECT_MAPPER.createObjectNode();
+            response.put("took", 1);
+            response.put("timed_out", false);
+            response.putObject("_shards").put("total", 1).put("successful", 1).put("skipped", 0).put("failed", 0);
+            ObjectNode hits = response.putObject("hits");
+            hits.putObject("total").put("value", found.size()).put("relation", "eq");
+            hits.put("max_score", found.isEmpty() ? 0 : found.getFirst().score());
+            ArrayNode hitArray = hits.putArray("hits");
+            for (Scored scored : found.subList(0, Math.min(size, found.size()))) {
+                ObjectNode hit = hitArray.addObject();
+                hit.put("_index", name);
+                hit.put("_id", scored.source().path("full-path").asText());
+                hit.put("_score", scored.score());
+                hit.set("_source", includes.isEmpty() ? scored.source() : ((ObjectNode) scored.source()).deepCopy().retain(includes));
+                if (sorted) {
+                    hit.putArray("sort").add(scored.score()).add(scored.position());
+                }
+            }
+            if (request.has("pit")) {
+                response.put("pit_id", request.path("pit").path("id").asText());
+            }
+            return response;
+        }
+
+        private Predicate<JsonNode> knnFilter(JsonNode filter) {
+            if (filter.isMissingNode()) {
+                return _ -> true;
+            }
+            if (filter.isArray()) {
+                Predicate<JsonNode> all = _ -> true;
+                for (JsonNode clause : filter) {
+                    all = all.and(matches(clause));
+                }
+                return all;
+            }
+            return matches(filter);
+        }
+
+        /// Supports the queries the searcher builds: `bool`, `wildcard`, `term`, `range`, `exists` and `match_all`.
+        private Predicate<JsonNode> matches(JsonNode query) {
+            String type = query.fieldNames().next();
+            JsonNode body = query.path(type);
+            return switch (type) {
+                case "match_all" -> _ -> true;
+                case "bool" -> {
+                    Predicate<JsonNode> result = _ -> true;
+                    for (String occur : List.of("must", "filter")) {
+                        for (JsonNode clause : asList(body.path(occur))) {
+                            result = result.and(matches(clause));
+                        }
+                    }
+                    for (JsonNode clause : asList(body.path("must_not"))) {
+                        result = result.and(matches(clause).negate());
+                    }
+                    List<JsonNode> should = asList(body.path("should"));
+                    if (!should.isEmpty()) {
+                        Predicate<JsonNode> any = _ -> false;
+                        for (JsonNode clause : should) {
+                            any = any.or(matches(clause));
+                        }
+                        result = result.and(any);
+                    }
+                    yield result;
+                }
+                case "wildcard" -> {
+                    String field = body.fieldNames().next();
+                    JsonNode spec = body.path(field);
+                    String pattern = spec.isObject() ? spec.path(spec.has("value") ? "value" : "wildcard").asText() : spec.asText();
+                    Pattern regex = Pattern.compile(pattern.chars()
+                        .mapToObj(c -> c == '*' ? ".*" : c == '?' ? "." : Pattern.quote(Character.toString(c)))
+                        .reduce("", String::concat));
+                    yield document -> regex.matcher(value(document, field).asText()).matches();
+                }
+                case "term" -> {
+                    String field = body.fieldNames().next();
+                    JsonNode spec = body.path(field);
+                    String expected = spec.isObject() ? spec.path("value").asText() : spec.asText();
+                    yield document -> value(document, field).asText().equals(expected);
+                }
+                case "exists" -> {
+                    String field = body.path("field").asText();
+                    yield document -> !value(document, field).isMissingNode() && !value(document, field).isNull();
+                }
+                case "range" -> {
+                    String field = body.fieldNames().next();
+                    JsonNode bounds = body.path(field);
+                    Double scalingFactor = SCALING_FACTORS.get(field);
+                    if (scalingFactor != null) {
+                        // like Elasticsearch: the value is stored rounded, the bounds are scaled and rounded inwards
+                        yield document -> {
+                            JsonNode value = value(document, field);
+                            if (!value.isNumber()) {
+                                return false;
+                            }
+                            long v = Math.round(value.asDouble() * scalingFactor);
+                            return (!bounds.has("gte") || v >= Math.ceil(bounds.path("gte").asDouble() * scalingFactor))
+                                && (!bounds.has("gt") || v >= Math.ceil(Math.nextUp(bounds.path("gt").asDouble() * scalingFactor)))
+                                && (!bounds.has("lte") || v <= Math.floor(bounds.path("lte").asDouble() * scalingFactor))
+                                && (!bounds.has("lt") || v <= Math.floor(Math.nextDown(bounds.path("lt").asDouble() * scalingFactor)));
+                        };
+                    }
+                    yield document -> {
+                        JsonNode value = value(document, field);
+                        if (!value.isNumber()) {
+                            return false;
+                        }
+                        double v = value.asDouble();
+                        return (!bounds.has("gte") || v >= bounds.path("gte").asDouble())
+                            && (!bounds.has("gt") || v > bounds.path("gt").asDouble())
+                            && (!bounds.has("lte") || v <= bounds.path("lte").asDouble())
+                            && (!bounds.has("lt") || v < bounds.path("lt").asDouble());
+                    };
+                }
+                default -> throw new IllegalArgumentException("Query type not supported by the stand-in: " + type);
+            };
+        }
+
+        private ObjectNode info() {
+            ObjectNode info = OBJECT_MAPPER.createObjectNode();
+            info.put("name", "stand-in");
+            info.put("cluster_name", "stand-in");
+            info.put("cluster_uuid", "stand-in");
+            info.putObject("version").put("number", "8.16.2").put("build_flavor", "default");
+            info.put("tagline", "You Know, for Search");
+            return info;
+        }
+
+        // everything the client needs to deserialize the stats, with counters following the index operations
+        private ObjectNode stats() {
+            long count = operations.get();
+            ObjectNode stats = OBJECT_MAPPER.createObjectNode();
+            stats.putObject("_shards").put("total", 1).put("successful", 1).put("failed", 0);
+            ObjectNode all = stats.putObject("_all");
+            ObjectNode primaries = all.putObject("primaries");
+            primaries.putObject("indexing")
+                .put("index_total", count).put("index_time_in_millis", 0).put("index_current", 0)
+                .put("index_failed", 0).put("delete_total", 0).put("delete_time_in_millis", 0)
+                .put("delete_current", 0).put("noop_update_total", 0).put("is_throttled", false)
+                .put("throttle_time_in_millis", 0);
+            primaries.putObject("refresh")
+                .put("total", count).put("total_time_in_millis", 0).put("external_total", count)
+                .put("external_total_time_in_millis", 0).put("listeners", 0);
+            all.set("total", primaries.deepCopy());
+            stats.putObject("indices");
+            return stats;
+        }
+
+        private static ObjectNode error(String type, String reason) {
+            ObjectNode error = OBJECT_MAPPER.createObjectNode();
+            error.putObject("error").put("type", type).put("reason", reason);
+            error.put("status", 400);
+            return error;
+        }
+
+        private static JsonNode readBody(InputStream body) {
+            try {
+                return OBJECT_MAPPER.readTree(body);
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+
+        // dotted paths, like price.value
+        private static JsonNode value(JsonNode document, String field) {
+            JsonNode node = document;
+            for (String part : field.split("\\.")) {
+                node = node.path(part);
+            }
+            return node;
+        }
+
+        private static List<JsonNode> asList(JsonNode clauses) {
+            List<JsonNode> list = new ArrayList<>();
+            if (clauses.isArray()) {
+                clauses.forEach(list::add);
+            } else if (!clauses.isMissingNode()) {
+                list.add(clauses);
+            }
+            return list;
+        }
+
+        private static float[] toVector(JsonNode array) {
+            float[] vector = new float[array.size()];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = array.get(i).floatValue();
+            }
+            return vector;
+        }
+
+        private record Document(ObjectNode source, float[] vector) {
+        }
+    }
+}
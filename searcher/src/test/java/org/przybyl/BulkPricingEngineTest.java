@@ -0,0 +1,127 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.LongStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class BulkPricingEngineTest {
+
+    private final BulkPricingEngine engine = new BulkPricingEngine(new DiscountCalculator());
+
+    @Test
+    void testReprice_MatchesBigDecimalHalfUpForEveryTier() {
+        // Given
+        Random random = new Random(42);
+        // every remainder mod 100 near zero, random prices, halves, negative (refunds) and huge amounts;
+        // deliberately not a multiple of any vector length
+        long[] cents = LongStream.concat(
+            LongStream.rangeClosed(-1_000, 1_000),
+            LongStream.concat(
+                random.longs(10_001, -10_000_000_000L, 10_000_000_000L),
+                LongStream.of(50, 150, 250, -50, -150, 1L << 53, -(1L << 53), Long.MAX_VALUE / 1000, Long.MIN_VALUE / 1000)))
+            .toArray();
+
+        for (boolean goldMember : new boolean[]{false, true}) {
+            for (int items = 0; items <= 6; items++) {
+                // When
+                long[] repriced = engine.reprice(cents, goldMember, items);
+
+                // Then
+                for (int i = 0; i < cents.length; i++) {
+                    BigDecimal expected = engine.discountedPrice(BigDecimal.valueOf(cents[i], 2), goldMember, items);
+                    assertThat(BigDecimal.valueOf(repriced[i], 2))
+                        .as("%d cents, gold=%s, items=%d", cents[i], goldMember, items)
+                        .isEqualTo(expected);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testPercentOf_RoundsHalvesAwayFromZero() {
+        // Given
+        long[] cents = {1, 3, 5, -1, -3, -5, 10, 0};
+        long[] result = new long[cents.length];
+
+        // When
+        FixedPointArithmetic.percentOf(cents, 50, result);
+
+        // Then
+        assertThat(result).containsExactly(1, 2, 3, -1, -2, -3, 5, 0);
+        assertThat(Arrays.stream(cents).map(c -> FixedPointArithmetic.percentOf(c, 50)).toArray()).isEqualTo(result);
+    }
+
+    @Test
+    void testPercentOf_FailsInsteadOfOverflowing() {
+        // When/Then
+        assertThatThrownBy(() -> FixedPointArithmetic.percentOf(new long[]{Long.MAX_VALUE}, 80, new long[1]))
+            .isInstanceOf(ArithmeticException.class);
+        assertThatThrownBy(() -> FixedPointArithmetic.percentOf(Long.MIN_VALUE, 80))
+            .isInstanceOf(ArithmeticException.class);
+        assertThatThrownBy(() -> FixedPointArithmetic.percentOf(1, 101))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testAnnotate_DiscountsItemsKeepingPricelessOnes() {
+        // Given
+        SearchResult result = new SearchResult("apple", List.of(
+            new CatalogueItem("apple.jpg", "path/to/apple.jpg", new Price(new BigDecimal("12.99"), "USD")),
+            new CatalogueItem("free.jpg", "path/to/free.jpg", null),
+            new CatalogueItem("basket.jpg", "path/to/basket.jpg", new Price(new BigDecimal("24.5"), "EUR"))),
+            true);
+
+        // When
+        // gold member: 20% off, then 5 items: another 20% off
+        SearchResult annotated = engine.annotate(result, true, 5);
+
+        // Then
+        assertThat(annotated.partial()).isTrue();
+        assertThat(annotated.items()).extracting(CatalogueItem::toPriceString)
+            .containsExactly("apple.jpg (8.31 USD)", "free.jpg (priceless)", "basket.jpg (15.68 EUR)");
+        assertThat(annotated.items().getFirst().price().value())
+            .isEqualByComparingTo(new BigDecimal("12.99").multiply(new BigDecimal("0.8")).setScale(2, RoundingMode.HALF_UP)
+                .multiply(new BigDecimal("0.8")).setScale(2, RoundingMode.HALF_UP));
+    }
+
+    @Test
+    void testAnnotate_KeepsPricesWithoutCurrency() {
+        // Given
+        SearchResult result = new SearchResult("apple", List.of(
+            new CatalogueItem("apple.jpg", "path/to/apple.jpg", new Price(new BigDecimal("10.00"), null)),
+            new CatalogueItem("free.jpg", "path/to/free.jpg", null)),
+            false);
+
+        // When
+        // not a gold member: 5% off, a single item: no other discount
+        SearchResult annotated = engine.annotate(result, false, 1);
+
+        // Then
+        assertThat(annotated.items().getFirst().price()).isEqualTo(new Price(950, null));
+        assertThat(annotated.items().getLast().price()).isNull();
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class EncoderClientTest {
+
+    private final List<HttpServer> servers = new ArrayList<>();
+
+    @AfterEach
+    void stopServers() {
+        servers.forEach(server -> server.stop(0));
+    }
+
+    @Test
+    void testEncodeText_ParsesEmbedding() {
+        // Given
+        URI uri = startEncoder(200, "{\"success\":true,\"dimensions\":3,\"embedding\":[0.5,-1.0,2.25]}", new AtomicInteger(), null);
+        EncoderClient client = newClient(List.of(uri), 4);
+
+        // When
+        float[] vector = client.encodeText("apple").join();
+
+        // Then
+        assertThat(vector).containsExactly(0.5f, -1.0f, 2.25f);
+    }
+
+    @Test
+    void testEncodeText_FailsOnErrorStatus() {
+        // Given
+        URI uri = startEncoder(500, "{\"error\":\"boom\"}", new AtomicInteger(), null);
+        EncoderClient client = newClient(List.of(uri), 4);
+
+        // When/Then
+        assertThatThrownBy(() -> client.encodeText("apple").join())
+            .isInstanceOf(CompletionException.class)
+            .hasMessageContaining("Status code: [500]");
+    }
+
+    @Test
+    void testEncodeText_PrefersLeastOutstandingEndpoint() throws Exception {
+        // Given a replica which hangs until released, and a responsive one
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger slowCalls = new AtomicInteger();
+        AtomicInteger fastCalls = new AtomicInteger();
+        String body = "{\"success\":true,\"dimensions\":1,\"embedding\":[1.0]}";
+        URI slow = startEncoder(200, body, slowCalls, release);
+        URI fast = startEncoder(200, body, fastCalls, null);
+        EncoderClient client = newClient(List.of(slow, fast), 16);
+
+        // When
+        List<CompletableFuture<float[]>> futures = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            CompletableFuture<float[]> future = client.encodeText("query " + i);
+            futures.add(future);
+            try {
+                future.get(200, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException stuckOnSlowReplica) {
+                // expected once
+            }
+        }
+        release.countDown();
+        futures.forEach(CompletableFuture::join);
+
+        // Then once the stuck replica has a request outstanding, it isn't picked again
+        assertThat(slowCalls.get()).isEqualTo(1);
+        assertThat(fastCalls.get()).isEqualTo(9);
+        assertThat(client.outstandingRequests()).containsExactly(0, 0);
+    }
+
+    @Test
+    void testEncodeText_BoundsConcurrency() {
+        // Given
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        URI uri = startEncoder(200, "{\"success\":true,\"dimensions\":1,\"embedding\":[1.0]}", calls, release);
+        EncoderClient client = newClient(List.of(uri), 2);
+
+        // When
+        List<CompletableFuture<float[]>> futures = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            futures.add(client.encodeText("query " + i));
+        }
+
+        // Then
+        assertThat(client.outstandingRequests()).containsExactly(2);
+        release.countDown();
+        futures.forEach(CompletableFuture::join);
+        assertThat(calls.get()).isEqualTo(5);
+    }
+
+    private EncoderClient newClient(List<URI> uris, int maxConcurrency) {
+        return new EncoderClient(uris, HttpClient.Version.HTTP_1_1, Duration.ofSeconds(1), Duration.ofSeconds(5), maxConcurrency);
+    }
+
+    private URI startEncoder(int status, String body, AtomicInteger calls, CountDownLatch release) {
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+            server.createContext("/encode_text", exchange -> {
+                calls.incrementAndGet();
+                try (exchange) {
+                    if (release != null) {
+                        release.await(5, TimeUnit.SECONDS);
+                    }
+                    byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+                    exchange.getResponseHeaders().add("Content-Type", "application/json");
+                    exchange.sendResponseHeaders(status, bytes.length);
+                    exchange.getResponseBody().write(bytes);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            server.setExecutor(Executors.newCachedThreadPool());
+            server.start();
+            servers.add(server);
+            return URI.create("http://localhost:" + server.getAddress().getPort() + "/encode_text");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -88,6 +88,20 @@ public class EnterpriseySearcherTest {
         );
     }
 
+    @Test
+    void testCombineUsingRRF_RejectsWeightsNotMatchingTheLists() {
+        // Given
+        List<List<CatalogueItem>> lists = List.of(List.of(createItem("item1", "1.00", "USD")), List.of());
+
+        // When/Then
+        assertThrows(IllegalArgumentException.class, () ->
+            EnterpriseySearcher.combineUsingRRF(lists, List.of(1.0), 60, 10)
+        );
+        assertThrows(IllegalArgumentException.class, () ->
+            EnterpriseySearcher.combineUsingRRF(lists, List.of(1.0, 2.0, 3.0), 60, 10)
+        );
+    }
+
     @Test
     void testCombineUsingRRF_TwoLists() {
         // Given
@@ -0,0 +1,250 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.assertj.core.api.Assertions.within;
+
+public class ImageSearchTest {
+
+    private static final String INDEX = "catalogue";
+
+    private static StubBackends.Stub encoder;
+    private static StubBackends.Stub elasticsearch;
+    private static ElasticsearchClient esClient;
+
+    @BeforeAll
+    static void startBackends() throws IOException {
+        encoder = StubBackends.startEncoder(Duration.ZERO);
+        EnterpriseySearcher.setEncoderUrl(encoder.url());
+        elasticsearch = StubBackends.startElasticsearch(INDEX, List.of(Path.of("src/test/resources/data.ndjson")), 0, Duration.ZERO);
+        esClient = StubBackends.elasticsearchClient(elasticsearch);
+    }
+
+    @AfterAll
+    static void stopBackends() throws IOException {
+        EnterpriseySearcher.resetState();
+        esClient._transport().close();
+        elasticsearch.close();
+        encoder.close();
+    }
+
+    @Test
+    void testEncodeImage_StreamsTheBase64OfTheWholeImage() throws IOException {
+        // Given
+        // not a multiple of 3, and longer than a chunk, so both the chunks and the padding are checked
+        byte[] image = new byte[10_001];
+        new Random(1).nextBytes(image);
+        EncoderClient client = new EncoderClient(List.of(URI.create(encoder.url())), HttpClient.Version.HTTP_1_1,
+            EncoderClient.DEFAULT_CONNECT_TIMEOUT, EncoderClient.DEFAULT_REQUEST_TIMEOUT, 1);
+
+        // When
+        float[] vector = client.encodeImage(ImageSource.of(image)).join();
+
+        // Then
+        assertThat(vector).containsExactly(StubBackends.fixedVector(new String(image, StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    void testEncodeImage_FailsWhenTheFileChangesBeforeItIsSent(@TempDir Path directory) throws IOException {
+        // Given
+        Path file = Files.write(directory.resolve("apple.jpg"), "a photo of an apple".getBytes(StandardCharsets.UTF_8));
+        try (StubBackends.Stub slowEncoder = StubBackends.startEncoder(Duration.ofMillis(300))) {
+            // with a single request at a time, the image waits for the text to be encoded
+            EncoderClient client = new EncoderClient(List.of(URI.create(slowEncoder.url())), HttpClient.Version.HTTP_1_1,
+                EncoderClient.DEFAULT_CONNECT_TIMEOUT, EncoderClient.DEFAULT_REQUEST_TIMEOUT, 1);
+            CompletableFuture<float[]> text = client.encodeText("apple");
+
+            // When
+            CompletableFuture<float[]> image = client.encodeImage(ImageSource.of(file));
+            Files.write(file, "a larger photo of an apple".getBytes(StandardCharsets.UTF_8));
+
+            // Then
+            assertThat(text.join()).hasSize(StubBackends.DIMENSIONS);
+            assertThatThrownBy(image::join).hasRootCauseInstanceOf(IOException.class)
+                .rootCause().hasMessageContaining("The image changed while it was being sent");
+        }
+    }
+
+    @Test
+    void testObtainImageEmbedding_EncodesTheSameContentOnlyOnce(@TempDir Path directory) throws IOException {
+        // Given
+        byte[] photo = "a photo of an apple".getBytes(StandardCharsets.UTF_8);
+        Path file = Files.write(directory.resolve("apple-again.jpg"), photo);
+        ImageEmbeddingCache.Stats before = EnterpriseySearcher.IMAGE_CACHE.stats();
+
+        // When
+        float[] fromBytes = EnterpriseySearcher.obtainImageEmbedding(ImageSource.of(photo)).join();
+        float[] fromFile = EnterpriseySearcher.obtainImageEmbedding(ImageSource.of(file)).join();
+
+        // Then
+        ImageEmbeddingCache.Stats after = EnterpriseySearcher.IMAGE_CACHE.stats();
+        assertThat(fromFile).isSameAs(fromBytes);
+        assertThat(after.misses() - before.misses()).isEqualTo(1);
+        assertThat(after.hits() - before.hits()).isEqualTo(1);
+    }
+
+    @Test
+    void testImageEmbeddingCache_CoalescesConcurrentLookupsAndForgetsFailures() {
+        // Given
+        ImageEmbeddingCache cache = new ImageEmbeddingCache(1);
+        AtomicInteger encodings = new AtomicInteger();
+        CompletableFuture<float[]> encoding = new CompletableFuture<>();
+
+        // When
+        CompletableFuture<float[]> first = cache.get("a", () -> {
+            encodings.incrementAndGet();
+            return encoding;
+        });
+        CompletableFuture<float[]> second = cache.get("a", () -> {
+            encodings.incrementAndGet();
+            return CompletableFuture.completedFuture(new float[0]);
+        });
+        encoding.completeExceptionally(new IOException("boom"));
+        cache.get("b", () -> CompletableFuture.completedFuture(new float[]{1}));
+        cache.get("c", () -> CompletableFuture.completedFuture(new float[]{2}));
+
+        // Then
+        assertThat(encodings).hasValue(1);
+        assertThat(second).isSameAs(first).isCompletedExceptionally();
+        // "a" failed, "b" is evicted by "c"
+        assertThat(cache.size()).isEqualTo(1);
+        assertThat(cache.stats()).isEqualTo(new ImageEmbeddingCache.Stats(1, 3));
+    }
+
+    @Test
+    void testSearchByImage_UsesOnlyKnnWithoutTextAndBothLegsWithIt() {
+        // Given
+        byte[] photo = "apple.jpg".getBytes(StandardCharsets.UTF_8);
+
+        // When
+        SearchResult imageOnly;
+        SearchResult imageAndText;
+        try (ExecutorService executor = Executors.newFixedThreadPool(2)) {
+            imageOnly = EnterpriseySearcher.searchByImage(ImageSource.of(photo), null, SearchFilter.NONE, INDEX, esClient, executor).join();
+            imageAndText = EnterpriseySearcher.searchByImage(ImageSource.of(photo), "apple", SearchFilter.NONE, INDEX, esClient, executor).join();
+        }
+
+        // Then
+        assertThat(imageOnly.partial()).isFalse();
+        assertThat(imageOnly.query()).isEqualTo("image of 9 bytes");
+        assertThat(imageOnly.items()).hasSize(EnterpriseySearcher.TOP_K);
+        assertThat(imageAndText.partial()).isFalse();
+        assertThat(imageAndText.query()).isEqualTo("image of 9 bytes + apple");
+        // the apples are found by the classic search, so they're among the fused results
+        assertThat(imageAndText.items()).anyMatch(item -> item.filename().contains("apple"));
+    }
+
+    @Test
+    void testSearchByImage_DoesNotReuseKnnResultsOfAnOlderGeneration() throws Exception {
+        // Given
+        byte[] photo = "pear.jpg".getBytes(StandardCharsets.UTF_8);
+        try (ExecutorService executor = Executors.newFixedThreadPool(2)) {
+            SearchResult before = EnterpriseySearcher.searchByImage(ImageSource.of(photo), null, SearchFilter.NONE, INDEX, esClient, executor).join();
+            CatalogueItem top = before.items().getFirst();
+
+            // When its price changes, and the index generation is checked again
+            reprice(top.fullPath(), "PLN", 77.7);
+            Thread.sleep(1100);
+            SearchResult after = EnterpriseySearcher.searchByImage(ImageSource.of(photo), null, SearchFilter.NONE, INDEX, esClient, executor).join();
+
+            // Then
+            assertThat(after.items()).filteredOn(item -> item.fullPath().equals(top.fullPath()))
+                .singleElement().extracting(item -> item.price().currency()).isEqualTo("PLN");
+        }
+    }
+
+    @Test
+    void testSearchByImage_TellsTheImageWhenNoSearchCanBeRun() {
+        // Given
+        byte[] photo = "plums.jpg".getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < 5; i++) {
+            EnterpriseySearcher.ELASTICSEARCH_GUARD.call(() -> CompletableFuture.failedFuture(new IOException("Connection refused")));
+        }
+
+        // When
+        try (ExecutorService executor = Executors.newFixedThreadPool(2)) {
+            CompletableFuture<SearchResult> imageOnly =
+                EnterpriseySearcher.searchByImage(ImageSource.of(photo), null, SearchFilter.NONE, INDEX, esClient, executor);
+
+            // Then
+            assertThatThrownBy(imageOnly::join).hasRootCauseInstanceOf(BackendUnavailableException.class)
+                .rootCause().hasMessage("No search could be run for: image of 9 bytes");
+        } finally {
+            EnterpriseySearcher.ELASTICSEARCH_GUARD.reset();
+        }
+    }
+
+    @Test
+    void testImageAndTextVector_PointsHalfWayBetweenThem() {
+        // Given
+        float[] image = {3, 0, 0, 0, 0, 0, 0, 0, 0};
+        float[] text = {0, 0.5f, 0, 0, 0, 0, 0, 0, 0};
+
+        // When
+        float[] combined = EnterpriseySearcher.imageAndTextVector(image, text);
+
+        // Then
+        assertThat(VectorSimilarity.cosine(combined, image)).isCloseTo(VectorSimilarity.cosine(combined, text), within(1e-6f));
+        assertThat(image).containsExactly(3, 0, 0, 0, 0, 0, 0, 0, 0);
+        assertThat(EnterpriseySearcher.imageAndTextVector(image, null)).isSameAs(image);
+    }
+
+    private static void reprice(String fullPath, String currency, double value) throws IOException, InterruptedException {
+        List<String> lines = Files.readAllLines(Path.of("src/test/resources/data.ndjson"));
+        String id = null;
+        for (int i = 0; i + 1 < lines.size(); i += 2) {
+            if (EnterpriseySearcher.OBJECT_MAPPER.readTree(lines.get(i + 1)).path("full-path").asText().equals(fullPath)) {
+                id = EnterpriseySearcher.OBJECT_MAPPER.readTree(lines.get(i)).path("index").path("_id").asText();
+            }
+        }
+        String bulk = """
+            {"update":{"_id":"%s"}}
+            {"doc":{"price":{"currency":"%s","value":%s}}}
+            """.formatted(id, currency, value);
+        try (HttpClient client = HttpClient.newHttpClient()) {
+            HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(elasticsearch.url() + "/" + INDEX + "/_bulk"))
+                .header("Content-Type", "application/x-ndjson")
+                .POST(HttpRequest.BodyPublishers.ofString(bulk))
+                .build(), HttpResponse.BodyHandlers.ofString());
+            assertThat(response.statusCode()).isEqualTo(200);
+        }
+    }
+}
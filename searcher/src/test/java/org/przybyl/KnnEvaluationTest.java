@@ -0,0 +1,103 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KnnEvaluationTest {
+
+    @Test
+    void testGroundTruth_MatchesSortingAllTheDocuments() {
+        // Given
+        List<CatalogueDocument> documents = KnnEvaluation.syntheticDocuments(500, 32, new Random(1));
+        List<float[]> queries = KnnEvaluation.perturbedQueries(documents, 20, 0.5, new Random(2));
+
+        // When
+        List<List<String>> groundTruth;
+        try (ForkJoinPool pool = new ForkJoinPool(2)) {
+            groundTruth = KnnEvaluation.groundTruth(documents, queries, 10, pool);
+        }
+
+        // Then
+        assertThat(groundTruth).hasSize(20);
+        for (int i = 0; i < queries.size(); i++) {
+            float[] query = queries.get(i);
+            List<String> sorted = documents.stream()
+                .sorted(Comparator.comparingDouble((CatalogueDocument document) -> VectorSimilarity.cosine(query, document.embedding())).reversed())
+                .limit(10)
+                .map(CatalogueDocument::fullPath)
+                .toList();
+            assertThat(groundTruth.get(i)).containsExactlyElementsOf(sorted);
+        }
+    }
+
+    @Test
+    void testEvaluateHnsw_RecallGrowsWithNumCandidates() throws IOException {
+        // Given
+        List<CatalogueDocument> documents = KnnEvaluation.syntheticDocuments(2_000, 64, new Random(1));
+        List<float[]> queries = KnnEvaluation.perturbedQueries(documents, 50, 0.5, new Random(2));
+        List<List<String>> groundTruth;
+        try (ForkJoinPool pool = new ForkJoinPool(2)) {
+            groundTruth = KnnEvaluation.groundTruth(documents, queries, 10, pool);
+        }
+
+        // When
+        List<KnnEvaluation.GridPoint> results = KnnEvaluation.evaluateHnsw(documents, queries, groundTruth,
+            List.of(10), List.of(10, 100), List.of(16), List.of(100), true);
+
+        // Then
+        assertThat(results).hasSize(2);
+        assertThat(results.getLast().recall()).isGreaterThan(0.9).isGreaterThanOrEqualTo(results.getFirst().recall());
+        assertThat(results).allSatisfy(point -> assertThat(point.p99()).isGreaterThanOrEqualTo(point.p50()));
+    }
+
+    @Test
+    void testEvaluateStandIn_FindsTheExactTopKWithBareKnnSearches() throws IOException {
+        // Given
+        List<CatalogueDocument> documents = KnnEvaluation.syntheticDocuments(300, 16, new Random(1));
+        List<float[]> queries = KnnEvaluation.perturbedQueries(documents, 10, 0.5, new Random(2));
+        List<List<String>> groundTruth;
+        try (ForkJoinPool pool = new ForkJoinPool(1)) {
+            groundTruth = KnnEvaluation.groundTruth(documents, queries, 5, pool);
+        }
+
+        // When
+        List<KnnEvaluation.GridPoint> results = KnnEvaluation.evaluateStandIn(documents, queries, groundTruth,
+            List.of(5), List.of(3, 10), "catalogue");
+
+        // Then
+        // fewer candidates than k make no sense, so they're skipped
+        assertThat(results).singleElement().satisfies(point -> {
+            assertThat(point.numCandidates()).isEqualTo(10);
+            assertThat(point.recall()).isEqualTo(1.0);
+        });
+    }
+
+    @Test
+    void testRecall_CountsTheExactTopKFound() {
+        assertThat(KnnEvaluation.recall(List.of("a", "b", "c", "d"), List.of("b", "x", "a", "y"), 4)).isEqualTo(0.5);
+        assertThat(KnnEvaluation.recall(List.of("a", "b", "c"), List.of("c", "b"), 2)).isEqualTo(0.5);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class KnnRerankerTest {
+
+    private static final Path DATA = Path.of("src/test/resources/data.ndjson");
+
+    @Test
+    void testRerank_OrdersByExactCosine() {
+        // Given
+        KnnReranker reranker = new KnnReranker(3, Map.of());
+        float[] query = {1, 0, 0};
+        // in the order of the quantized index
+        List<CatalogueDocument> candidates = List.of(
+            createDocument("far", new float[]{0, 1, 0}),
+            createDocument("near", new float[]{10, 1, 0}),
+            createDocument("middle", new float[]{1, 1, 0}),
+            createDocument("nearest", new float[]{2, 0, 0}));
+
+        // When
+        List<CatalogueItem> reranked = reranker.rerank(query, candidates, 3);
+
+        // Then
+        assertThat(reranked).extracting(CatalogueItem::filename).containsExactly("nearest", "near", "middle");
+    }
+
+    @Test
+    void testRerank_PrefersLocalVectorsAndKeepsUnscoredLast() {
+        // Given
+        KnnReranker reranker = new KnnReranker(2, Map.of("path/to/far", new float[]{0, 1}));
+        float[] query = {1, 0};
+        List<CatalogueDocument> candidates = List.of(
+            createDocument("unknown-1", null),
+            createDocument("far", new float[]{1, 0}),
+            createDocument("unknown-2", null),
+            createDocument("near", new float[]{1, 0.1f}));
+
+        // When
+        List<CatalogueItem> reranked = reranker.rerank(query, candidates, 4);
+
+        // Then
+        assertThat(reranked).extracting(CatalogueItem::filename).containsExactly("near", "far", "unknown-1", "unknown-2");
+    }
+
+    @Test
+    void testPerformKnnSearch_ReranksWithLocalOrFetchedVectors() throws IOException {
+        // Given
+        List<CatalogueDocument> documents = CatalogueDocument.readBulkFile(DATA);
+        float[] query = StubBackends.fixedVector("apple");
+        List<String> exactTop5 = documents.stream()
+            .sorted(Comparator.comparingDouble((CatalogueDocument document) -> VectorSimilarity.cosine(query, document.embedding())).reversed())
+            .limit(5)
+            .map(CatalogueDocument::fullPath)
+            .toList();
+
+        try (var elasticsearch = StubBackends.startElasticsearch("catalogue", List.of(DATA), 0, Duration.ZERO)) {
+            ElasticsearchClient esClient = StubBackends.elasticsearchClient(elasticsearch);
+            EnterpriseySearcher.setKnnReranker(KnnReranker.withLocalVectors(3, DATA));
+            try {
+                // When
+                List<CatalogueItem> withLocalVectors = EnterpriseySearcher.performKnnSearch(query, "catalogue", esClient);
+                EnterpriseySearcher.setKnnReranker(new KnnReranker(3, Map.of()));
+                List<CatalogueItem> withFetchedVectors = EnterpriseySearcher.performKnnSearch(query, "catalogue", esClient);
+
+                // Then
+                assertThat(documents).hasSize(12);
+                assertThat(withLocalVectors).extracting(CatalogueItem::fullPath).containsExactlyElementsOf(exactTop5);
+                assertThat(withFetchedVectors).extracting(CatalogueItem::fullPath).containsExactlyElementsOf(exactTop5);
+                assertThat(EnterpriseySearcher.searchProfile(SearchFilter.NONE)).endsWith("rerank[x3]");
+            } finally {
+                EnterpriseySearcher.setKnnReranker(KnnReranker.DISABLED);
+                esClient._transport().close();
+            }
+        }
+    }
+
+    private static CatalogueDocument createDocument(String name, float[] embedding) {
+        return new CatalogueDocument(name, "path/to/" + name, new Price(new BigDecimal("1.00"), "USD"), embedding);
+    }
+}
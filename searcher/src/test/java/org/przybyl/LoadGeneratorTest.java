@@ -0,0 +1,170 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class LoadGeneratorTest {
+
+    @Test
+    void testZipf_HeadQueriesDominate() {
+        // Given
+        LoadGenerator.QuerySource queries = LoadGenerator.QuerySource.zipf(1000, 1.0, new Random(42));
+        Map<String, Integer> counts = new HashMap<>();
+
+        // When
+        for (int i = 0; i < 10_000; i++) {
+            counts.merge(queries.next(), 1, Integer::sum);
+        }
+
+        // Then
+        // with s = 1 and 1000 queries, the top one gets 1/H(1000) ≈ 13% of the traffic, the second one half of that
+        assertThat(counts.get("apple")).isBetween(1100, 1600);
+        assertThat(counts.get("orange")).isBetween(550, 800);
+        assertThat(counts.keySet()).hasSizeGreaterThan(300);
+    }
+
+    @Test
+    void testReplay_LoopsOverNonBlankLines() {
+        // Given
+        LoadGenerator.QuerySource queries = LoadGenerator.QuerySource.replay(List.of("apple", "", "plum"));
+
+        // When/Then
+        assertThat(List.of(queries.next(), queries.next(), queries.next())).containsExactly("apple", "plum", "apple");
+    }
+
+    @Test
+    void testPercentile_NearestRank() {
+        // Given
+        long[] sorted = new long[100];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = i + 1;
+        }
+
+        // When/Then
+        assertThat(LoadGenerator.Report.percentile(sorted, 50)).isEqualTo(50);
+        assertThat(LoadGenerator.Report.percentile(sorted, 99)).isEqualTo(99);
+        assertThat(LoadGenerator.Report.percentile(sorted, 99.9)).isEqualTo(100);
+        assertThat(LoadGenerator.Report.percentile(new long[0], 99)).isZero();
+    }
+
+    @Test
+    void testRun_ResponseTimeIncludesQueueingBehindAStall() {
+        // Given
+        // a single-threaded target which stalls once for 500ms, while requests keep coming every 10ms
+        try (ExecutorService executor = Executors.newSingleThreadExecutor()) {
+            int[] calls = {0};
+
+            // When
+            LoadGenerator.Report report = LoadGenerator.run(LoadGenerator.QuerySource.replay(List.of("apple")),
+                100, Duration.ZERO, Duration.ofSeconds(1),
+                query -> CompletableFuture.supplyAsync(() -> {
+                    sleep(calls[0]++ == 10 ? 500 : 1);
+                    return new SearchResult(query, List.of());
+                }, executor));
+
+            // Then
+            assertThat(report.completed()).isEqualTo(report.scheduled());
+            // service time, measured from the actual send, is the same as the response time here, because the sending is asynchronous,
+            // but the requests queued behind the stall are late: almost half of them wait for hundreds of milliseconds
+            assertThat(LoadGenerator.Report.percentile(report.responseTimes(), 75)).isGreaterThan(TimeUnit.MILLISECONDS.toNanos(100));
+            assertThat(LoadGenerator.Report.percentile(report.responseTimes(), 25)).isLessThan(TimeUnit.MILLISECONDS.toNanos(100));
+        }
+    }
+
+    @Test
+    void testRun_RecordsFailedAndUnfinishedRequests() {
+        // Given
+        // of every 4 requests, one fails after 50ms, one times out after 50ms, one never completes
+        int[] calls = {0};
+        Function<String, CompletableFuture<SearchResult>> target = query -> switch (calls[0]++ % 4) {
+            case 0 -> CompletableFuture.completedFuture(new SearchResult(query, List.of()));
+            case 1 -> CompletableFuture.supplyAsync(() -> {
+                throw new IllegalStateException("down");
+            }, CompletableFuture.delayedExecutor(50, TimeUnit.MILLISECONDS));
+            case 2 -> new CompletableFuture<SearchResult>().orTimeout(50, TimeUnit.MILLISECONDS);
+            default -> new CompletableFuture<>();
+        };
+
+        // When
+        LoadGenerator.Report report = LoadGenerator.run(LoadGenerator.QuerySource.replay(List.of("apple")),
+            100, Duration.ZERO, Duration.ofMillis(400), Duration.ofMillis(200), target);
+
+        // Then
+        assertThat(report.scheduled()).isEqualTo(40);
+        assertThat(report.completed()).isEqualTo(10);
+        assertThat(report.errors()).containsEntry("IllegalStateException", 10L).containsEntry("timeout", 10L);
+        assertThat(report.timeouts()).isEqualTo(10);
+        assertThat(report.unfinished()).isEqualTo(10);
+        assertThat(report.responseTimes()).hasSize(40);
+        // the quarter which never completes has waited at least as long as the waiting for the outstanding requests
+        assertThat(LoadGenerator.Report.percentile(report.responseTimes(), 76)).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(200));
+        assertThat(LoadGenerator.Report.percentile(report.responseTimes(), 74)).isGreaterThanOrEqualTo(TimeUnit.MILLISECONDS.toNanos(50))
+            .isLessThan(TimeUnit.MILLISECONDS.toNanos(200));
+        assertThat(report.toString()).contains("(10 errors, 10 timeouts, 10 unfinished)");
+    }
+
+    @Test
+    void testRun_AgainstStandIns() throws Exception {
+        // Given
+        // realistic latencies, sub-millisecond ones are too noisy for the adaptive concurrency limit
+        try (var encoder = StubBackends.startEncoder(Duration.ofMillis(5));
+             var elasticsearch = StubBackends.startElasticsearch("catalogue",
+                 List.of(Path.of("src/test/resources/data.ndjson")), 0, Duration.ofMillis(20));
+             ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            EnterpriseySearcher.setEncoderUrl(encoder.url());
+            ElasticsearchClient esClient = StubBackends.elasticsearchClient(elasticsearch);
+            try {
+                // When
+                LoadGenerator.Report report = LoadGenerator.run(LoadGenerator.QuerySource.zipf(20, 1.0, new Random(1)),
+                    10, Duration.ofMillis(500), Duration.ofSeconds(2),
+                    query -> EnterpriseySearcher.cachedSearch(query, "catalogue", esClient, executor));
+
+                // Then
+                assertThat(report.errors()).isEmpty();
+                assertThat(report.completed()).isEqualTo(report.scheduled()).isEqualTo(20);
+                assertThat(report.throughput()).isGreaterThan(5);
+            } finally {
+                EnterpriseySearcher.resetState();
+                esClient._transport().close();
+            }
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class MmrDiversifierTest {
+
+    private static final Path DATA = Path.of("src/test/resources/data.ndjson");
+
+    @Test
+    void testDiversify_SkipsNearDuplicates() {
+        // Given
+        Map<String, float[]> embeddings = new HashMap<>();
+        List<CatalogueItem> fused = List.of(
+            item("apple-1", new float[]{1, 0, 0}, embeddings),
+            item("apple-2", new float[]{0.99f, 0.05f, 0}, embeddings),
+            item("apple-3", new float[]{2, 0.1f, 0}, embeddings),
+            item("plum-1", new float[]{0, 1, 0}, embeddings),
+            item("plum-2", new float[]{0.05f, 0.99f, 0}, embeddings),
+            item("pear", new float[]{0, 0, 1}, embeddings));
+
+        // When
+        List<CatalogueItem> diverse = new MmrDiversifier(0.5, 6).diversify(fused, embeddings::get, 3);
+
+        // Then
+        assertThat(diverse).extracting(CatalogueItem::filename).containsExactly("apple-1", "plum-1", "pear");
+    }
+
+    @Test
+    void testDiversify_KeepsFusedOrderWithLambdaOneOrWithoutEmbeddings() {
+        // Given
+        Map<String, float[]> embeddings = new HashMap<>();
+        List<CatalogueItem> fused = List.of(
+            item("apple-1", new float[]{1, 0}, embeddings),
+            item("apple-2", new float[]{1, 0}, embeddings),
+            item("unknown", null, embeddings),
+            item("plum", new float[]{0, 1}, embeddings));
+
+        // When
+        List<CatalogueItem> relevantOnly = new MmrDiversifier(1, 4).diversify(fused, embeddings::get, 3);
+        List<CatalogueItem> withoutEmbeddings = new MmrDiversifier(0.5, 4).diversify(fused, _ -> null, 4);
+        List<CatalogueItem> diverse = new MmrDiversifier(0.5, 4).diversify(fused, embeddings::get, 4);
+
+        // Then
+        assertThat(relevantOnly).containsExactlyElementsOf(fused.subList(0, 3));
+        assertThat(withoutEmbeddings).containsExactlyElementsOf(fused);
+        // the one without an embedding isn't similar to any other, the duplicate apple comes last
+        assertThat(diverse).extracting(CatalogueItem::filename).containsExactly("apple-1", "unknown", "plum", "apple-2");
+        assertThat(MmrDiversifier.DISABLED.enabled()).isFalse();
+        assertThat(MmrDiversifier.DISABLED.window(5)).isEqualTo(5);
+        assertThatThrownBy(() -> new MmrDiversifier(1.5, 10)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    void testExecuteSearch_DiversifiesTheWiderWindowWithFetchedEmbeddings() throws IOException {
+        // Given
+        Map<String, float[]> embeddings = CatalogueDocument.readBulkFile(DATA).stream()
+            .collect(Collectors.toMap(CatalogueDocument::fullPath, CatalogueDocument::embedding));
+        QueryWithVector query = new QueryWithVector("apple", StubBackends.fixedVector("apple"));
+
+        try (var elasticsearch = StubBackends.startElasticsearch("catalogue", List.of(DATA), 0, Duration.ZERO)) {
+            ElasticsearchClient esClient = StubBackends.elasticsearchClient(elasticsearch);
+            try {
+                // When
+                SearchResult fused = EnterpriseySearcher.executeSearch(query, "catalogue", esClient);
+                EnterpriseySearcher.setDiversifier(new MmrDiversifier(0.3, 12));
+                SearchResult diverse = EnterpriseySearcher.executeSearch(query, "catalogue", esClient);
+
+                // Then
+                assertThat(diverse.partial()).isFalse();
+                assertThat(diverse.items()).hasSize(EnterpriseySearcher.TOP_K).doesNotHaveDuplicates();
+                assertThat(diverse.items()).isNotEqualTo(fused.items());
+                assertThat(meanSimilarity(diverse.items(), embeddings::get)).isLessThan(meanSimilarity(fused.items(), embeddings::get));
+                assertThat(EnterpriseySearcher.searchProfile(SearchFilter.NONE)).endsWith("mmr[lambda=0.3, window=12]");
+            } finally {
+                EnterpriseySearcher.setDiversifier(MmrDiversifier.DISABLED);
+                EnterpriseySearcher.resetState();
+                esClient._transport().close();
+            }
+        }
+    }
+
+    private static double meanSimilarity(List<CatalogueItem> items, Function<String, float[]> embeddings) {
+        double sum = 0;
+        int pairs = 0;
+        for (int i = 0; i < items.size(); i++) {
+            for (int j = i + 1; j < items.size(); j++) {
+                sum += VectorSimilarity.cosine(embeddings.apply(items.get(i).fullPath()), embeddings.apply(items.get(j).fullPath()));
+                pairs++;
+            }
+        }
+        return sum / pairs;
+    }
+
+    private static CatalogueItem item(String name, float[] embedding, Map<String, float[]> embeddings) {
+        CatalogueItem item = new CatalogueItem(name, "/images/" + name + ".jpg", null);
+        if (embedding != null) {
+            embeddings.put(item.fullPath(), embedding);
+        }
+        return item;
+    }
+}
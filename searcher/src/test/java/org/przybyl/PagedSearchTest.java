@@ -0,0 +1,312 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class PagedSearchTest {
+
+    private static final String INDEX = "catalogue";
+
+    private static StubBackends.Stub encoder;
+    private static StubBackends.Stub elasticsearch;
+    private static ElasticsearchClient esClient;
+    private static ExecutorService executor;
+
+    @BeforeAll
+    static void startBackends() throws IOException {
+        encoder = StubBackends.startEncoder(Duration.ZERO);
+        EnterpriseySearcher.setEncoderUrl(encoder.url());
+        // 12 items, 11 of them with various prices in various currencies, one priceless
+        elasticsearch = StubBackends.startElasticsearch(INDEX,
+            List.of(Path.of("src/test/resources/data.ndjson"), Path.of("src/test/resources/prices.ndjson")), 0, Duration.ZERO);
+        esClient = StubBackends.elasticsearchClient(elasticsearch);
+        executor = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    @AfterAll
+    static void stopBackends() throws IOException {
+        EnterpriseySearcher.resetState();
+        executor.close();
+        esClient._transport().close();
+        elasticsearch.close();
+        encoder.close();
+    }
+
+    @Test
+    void testFusionCursor_PagesFollowRrfOfCompleteLists() throws IOException {
+        // Given
+        Random random = new Random(42);
+        List<CatalogueItem> knn = shuffledItems(1_000, random);
+        // both legs tend to agree, like they do for real queries
+        double[] noisyRanks = IntStream.range(0, knn.size()).mapToDouble(i -> i + 50 * random.nextGaussian()).toArray();
+        List<CatalogueItem> classic = IntStream.range(0, knn.size())
+            .boxed()
+            .sorted(Comparator.comparingDouble(i -> noisyRanks[i]))
+            .limit(600)
+            .map(knn::get)
+            .toList();
+        Map<String, Double> rrf = new HashMap<>();
+        for (List<CatalogueItem> leg : List.of(knn, classic)) {
+            for (int i = 0; i < leg.size(); i++) {
+                rrf.merge(leg.get(i).fullPath(), 1.0 / (60 + i + 1), Double::sum);
+            }
+        }
+        AtomicInteger fetched = new AtomicInteger();
+        FusionCursor cursor = new FusionCursor(List.of(leg(knn, fetched), leg(classic, fetched)), 60, Integer.MAX_VALUE, 10, guard(Duration.ofSeconds(10)), executor);
+
+        // When
+        List<CatalogueItem> firstPage = cursor.next(10);
+        int fetchedForFirstPage = fetched.get();
+        List<CatalogueItem> all = new ArrayList<>(firstPage);
+        int mostFetchedForLaterPage = 0;
+        while (!cursor.hasEnded()) {
+            int before = fetched.get();
+            all.addAll(cursor.next(10));
+            mostFetchedForLaterPage = Math.max(mostFetchedForLaterPage, fetched.get() - before);
+        }
+
+        // Then
+        assertThat(firstPage).hasSize(10);
+        // the first page needs about rank constant items of each leg, the later ones about as much as they return
+        assertThat(fetchedForFirstPage).isLessThan(200);
+        assertThat(mostFetchedForLaterPage).isLessThanOrEqualTo(2 * fetchedForFirstPage);
+        assertThat(fetched.get() - fetchedForFirstPage).isLessThanOrEqualTo(2 * (all.size() - firstPage.size()));
+        assertThat(all).hasSize(rrf.size()).doesNotHaveDuplicates();
+        ToDoubleFunction<CatalogueItem> score = item -> rrf.get(item.fullPath());
+        assertThat(IntStream.range(1, all.size())).allSatisfy(i ->
+            assertThat(score.applyAsDouble(all.get(i))).isLessThanOrEqualTo(score.applyAsDouble(all.get(i - 1))));
+        // items with equal scores may come in any order
+        assertThat(firstPage).extracting(score::applyAsDouble).containsExactlyElementsOf(
+            EnterpriseySearcher.combineUsingRRF(List.of(knn, classic), 60, 10).stream().map(score::applyAsDouble).toList());
+    }
+
+    @Test
+    void testFusionCursor_FusesOnlyTheRankWindowOfLegsWhichDisagree() throws IOException {
+        // Given
+        List<CatalogueItem> items = shuffledItems(4_000, new Random(42));
+        List<CatalogueItem> knn = items.subList(0, 2_000);
+        List<CatalogueItem> classic = items.subList(2_000, 4_000);
+        AtomicInteger knnCalls = new AtomicInteger();
+        AtomicInteger classicCalls = new AtomicInteger();
+        FusionCursor cursor = new FusionCursor(
+            List.of(counted(leg(knn, new AtomicInteger()), knnCalls), counted(leg(classic, new AtomicInteger()), classicCalls)),
+            60, PagedSearch.RANK_WINDOW, PagedSearch.BATCH_SIZE, guard(Duration.ofSeconds(10)), executor);
+
+        // When
+        List<CatalogueItem> firstPage = cursor.next(10);
+        int knnCallsForFirstPage = knnCalls.get();
+        int classicCallsForFirstPage = classicCalls.get();
+        List<CatalogueItem> all = new ArrayList<>(firstPage);
+        while (!cursor.hasEnded()) {
+            all.addAll(cursor.next(10));
+        }
+
+        // Then
+        // no item is certainly first before the other leg ends, which is at the end of the window
+        int batchesOfTheWindow = PagedSearch.RANK_WINDOW / PagedSearch.BATCH_SIZE;
+        assertThat(knnCallsForFirstPage).isEqualTo(batchesOfTheWindow);
+        assertThat(classicCallsForFirstPage).isEqualTo(batchesOfTheWindow);
+        assertThat(knnCalls.get()).isEqualTo(batchesOfTheWindow);
+        assertThat(classicCalls.get()).isEqualTo(batchesOfTheWindow);
+        List<CatalogueItem> knnWindow = knn.subList(0, PagedSearch.RANK_WINDOW);
+        List<CatalogueItem> classicWindow = classic.subList(0, PagedSearch.RANK_WINDOW);
+        assertThat(all).hasSize(2 * PagedSearch.RANK_WINDOW).doesNotHaveDuplicates()
+            .containsAll(knnWindow).containsAll(classicWindow);
+        // items of the same rank in either leg score the same, so they may come in any order
+        ToDoubleFunction<CatalogueItem> rank = item -> Math.max(knnWindow.indexOf(item), classicWindow.indexOf(item));
+        assertThat(IntStream.range(1, all.size())).allSatisfy(i ->
+            assertThat(rank.applyAsDouble(all.get(i))).isGreaterThanOrEqualTo(rank.applyAsDouble(all.get(i - 1))));
+    }
+
+    @Test
+    void testFusionCursor_KeepsTheBatchesOfOtherLegsWhenOneFails() throws IOException {
+        // Given
+        List<CatalogueItem> knn = shuffledItems(100, new Random(1));
+        List<CatalogueItem> classic = shuffledItems(100, new Random(2));
+        AtomicInteger fetched = new AtomicInteger();
+        FusionCursor.Leg working = leg(classic, fetched);
+        FusionCursor.Leg failingOnce = leg(knn, fetched);
+        boolean[] failed = {false};
+        FusionCursor.Leg flaky = size -> {
+            if (!failed[0]) {
+                failed[0] = true;
+                throw new IOException("Connection reset");
+            }
+            return failingOnce.next(size);
+        };
+        FusionCursor cursor = new FusionCursor(List.of(flaky, working), 60, Integer.MAX_VALUE, 10, guard(Duration.ofSeconds(10)), executor);
+
+        // When
+        assertThatThrownBy(() -> cursor.next(10)).isInstanceOf(IOException.class).hasMessage("Connection reset");
+        List<CatalogueItem> firstPage = cursor.next(10);
+
+        // Then
+        assertThat(firstPage).containsExactlyElementsOf(EnterpriseySearcher.combineUsingRRF(List.of(knn, classic), 60, 10));
+    }
+
+    @Test
+    void testFusionCursor_TakesTheBatchOfLegWhichTimedOut() throws IOException {
+        // Given
+        List<CatalogueItem> knn = shuffledItems(100, new Random(1));
+        List<CatalogueItem> classic = shuffledItems(100, new Random(2));
+        AtomicInteger fetched = new AtomicInteger();
+        FusionCursor.Leg fast = leg(classic, fetched);
+        FusionCursor.Leg delayed = leg(knn, fetched);
+        CountDownLatch released = new CountDownLatch(1);
+        FusionCursor.Leg slow = size -> {
+            try {
+                released.await();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            return delayed.next(size);
+        };
+        FusionCursor cursor = new FusionCursor(List.of(slow, fast), 60, Integer.MAX_VALUE, 10, guard(Duration.ofMillis(50)), executor);
+
+        // When
+        assertThatThrownBy(() -> cursor.next(10)).isInstanceOf(IOException.class).hasCauseInstanceOf(TimeoutException.class);
+        released.countDown();
+        List<CatalogueItem> firstPage = null;
+        while (firstPage == null) {
+            try {
+                firstPage = cursor.next(10);
+            } catch (IOException e) {
+                // the late batch hasn't arrived yet
+                Thread.onSpinWait();
+            }
+        }
+
+        // Then
+        assertThat(firstPage).containsExactlyElementsOf(EnterpriseySearcher.combineUsingRRF(List.of(knn, classic), 60, 10));
+    }
+
+    @Test
+    void testSearchPages_ReturnEveryItemOnceAndEndWithoutCursor() throws IOException {
+        // Given
+        List<SearchResult> pages = new ArrayList<>();
+
+        // When
+        SearchResult page = EnterpriseySearcher.searchFirstPage("apple", SearchFilter.NONE, 5, INDEX, esClient, executor);
+        pages.add(page);
+        while (page.cursor() != null) {
+            page = EnterpriseySearcher.searchNextPage(page.cursor());
+            pages.add(page);
+        }
+
+        // Then
+        // all 12 items are among the nearest neighbours, the apples are found by both legs, so they come first
+        assertThat(pages).hasSize(3).allMatch(result -> !result.partial());
+        List<CatalogueItem> items = pages.stream().flatMap(result -> result.items().stream()).toList();
+        assertThat(items).hasSize(12).doesNotHaveDuplicates();
+        assertThat(items.getFirst().filename()).contains("apple");
+        assertThat(EnterpriseySearcher.CURSORS.size()).isZero();
+    }
+
+    @Test
+    void testSearchNextPage_AppliesFilterAndRejectsUsedCursor() throws IOException {
+        // Given
+        SearchFilter cheap = SearchFilter.price(null, new BigDecimal("5"), null);
+        SearchResult first = EnterpriseySearcher.searchFirstPage("apple", cheap, 1, INDEX, esClient, executor);
+
+        // When
+        SearchResult second = EnterpriseySearcher.searchNextPage(first.cursor());
+
+        // Then
+        assertThat(List.of(first, second)).flatExtracting(SearchResult::items)
+            .doesNotHaveDuplicates()
+            .allMatch(item -> item.price().value().compareTo(new BigDecimal("5")) <= 0);
+        assertThatThrownBy(() -> EnterpriseySearcher.searchNextPage(first.cursor()))
+            .isInstanceOf(IllegalArgumentException.class);
+        EnterpriseySearcher.CURSORS.take(second.cursor()).close();
+    }
+
+    @Test
+    void testCursorStore_ExpiresUnusedCursors() throws IOException {
+        // Given
+        long[] now = {0};
+        CursorStore store = new CursorStore(Duration.ofSeconds(60), () -> now[0]);
+        String expiring = store.register(PagedSearch.open(new QueryWithVector("apple", null), 1, INDEX, esClient, executor));
+
+        // When
+        now[0] = Duration.ofSeconds(61).toNanos();
+
+        // Then
+        assertThatThrownBy(() -> store.take(expiring)).isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> store.take("made-up")).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    private static List<CatalogueItem> shuffledItems(int count, Random random) {
+        List<CatalogueItem> items = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            items.add(new CatalogueItem("item-" + i + ".jpg", "/items/item-" + i + ".jpg", null));
+        }
+        Collections.shuffle(items, random);
+        return items;
+    }
+
+    // the limit doesn't adapt, the microsecond latencies of the stand-ins vary too much for that
+    private static ResilientBackend guard(Duration timeout) {
+        return new ResilientBackend("test",
+            new CircuitBreaker(5, Duration.ofSeconds(10), 1, System::nanoTime),
+            new AdaptiveConcurrencyLimit(20, 20, 20, 2.0, 0.9),
+            timeout,
+            System::nanoTime);
+    }
+
+    private static FusionCursor.Leg counted(FusionCursor.Leg leg, AtomicInteger calls) {
+        return size -> {
+            calls.incrementAndGet();
+            return leg.next(size);
+        };
+    }
+
+    private static FusionCursor.Leg leg(List<CatalogueItem> items, AtomicInteger fetched) {
+        int[] position = {0};
+        return size -> {
+            List<CatalogueItem> batch = items.subList(position[0], Math.min(position[0] + size, items.size()));
+            position[0] += batch.size();
+            fetched.addAndGet(batch.size());
+            return batch;
+        };
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch._types.ElasticsearchException;
+import co.elastic.clients.elasticsearch._types.ErrorResponse;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class ResilientBackendTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    @Test
+    void testCircuitBreaker_OpensAfterConsecutiveFailures() {
+        // Given
+        CircuitBreaker breaker = new CircuitBreaker(3, Duration.ofSeconds(10), 1, clock::get);
+
+        // When
+        for (int i = 0; i < 3; i++) {
+            long epoch = breaker.tryAcquire();
+            assertThat(epoch).isNotEqualTo(CircuitBreaker.REJECTED);
+            breaker.onFailure(epoch);
+        }
+
+        // Then
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(breaker.tryAcquire()).isEqualTo(CircuitBreaker.REJECTED);
+    }
+
+    @Test
+    void testCircuitBreaker_SuccessResetsFailureCount() {
+        // Given
+        CircuitBreaker breaker = new CircuitBreaker(3, Duration.ofSeconds(10), 1, clock::get);
+
+        long epoch = breaker.tryAcquire();
+
+        // When
+        breaker.onFailure(epoch);
+        breaker.onFailure(epoch);
+        breaker.onSuccess(epoch);
+        breaker.onFailure(epoch);
+        breaker.onFailure(epoch);
+
+        // Then
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void testCircuitBreaker_HalfOpenProbeClosesOrReopens() {
+        // Given
+        CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofSeconds(10), 1, clock::get);
+        breaker.onFailure(breaker.tryAcquire());
+
+        // When the open period passes, a single probe is let through
+        clock.addAndGet(Duration.ofSeconds(10).toNanos());
+        long probe = breaker.tryAcquire();
+        assertThat(probe).isNotEqualTo(CircuitBreaker.REJECTED);
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        assertThat(breaker.tryAcquire()).isEqualTo(CircuitBreaker.REJECTED);
+
+        // Then a failed probe opens the breaker again
+        breaker.onFailure(probe);
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.OPEN);
+
+        // And a successful one closes it
+        clock.addAndGet(Duration.ofSeconds(10).toNanos());
+        probe = breaker.tryAcquire();
+        breaker.onSuccess(probe);
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void testCircuitBreaker_OnlyProbesCloseIt() {
+        // Given
+        CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofSeconds(10), 1, clock::get);
+        long slowCall = breaker.tryAcquire();
+        breaker.onFailure(breaker.tryAcquire());
+        clock.addAndGet(Duration.ofSeconds(10).toNanos());
+        long probe = breaker.tryAcquire();
+
+        // When the call started before the breaker opened succeeds, while the probe is still running
+        breaker.onSuccess(slowCall);
+
+        // Then
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.HALF_OPEN);
+        breaker.onSuccess(probe);
+        assertThat(breaker.state()).isEqualTo(CircuitBreaker.State.CLOSED);
+    }
+
+    @Test
+    void testCall_CountsOnlyFailuresOfTheBackend() {
+        // Given
+        ResilientBackend backend = newBackend(1);
+        ErrorResponse notFound = ErrorResponse.of(e -> e
+            .error(c -> c.type("index_not_found_exception").reason("no such index [catalogue]"))
+            .status(404));
+        List<Throwable> requestErrors = List.of(
+            new IOException("Failed to perform search", new ElasticsearchException("search", notFound)),
+            new BackendResponseException(404, "Index 'catalogue' does not exist"),
+            new BackendResponseException(400, "Failed to encode"),
+            new IllegalArgumentException("Bad query"));
+
+        // When
+        for (Throwable error : requestErrors) {
+            backend.call(() -> CompletableFuture.failedFuture(error)).exceptionally(_ -> null).join();
+        }
+        CircuitBreaker.State afterRequestErrors = backend.breakerState();
+        backend.call(() -> CompletableFuture.failedFuture(new BackendResponseException(503, "Unavailable")))
+            .exceptionally(_ -> null).join();
+
+        // Then
+        assertThat(afterRequestErrors).isEqualTo(CircuitBreaker.State.CLOSED);
+        assertThat(backend.breakerState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(ResilientBackend.isBackendFailure(new CompletionException(new ConnectException("refused")))).isTrue();
+        assertThat(ResilientBackend.isBackendFailure(new TimeoutException())).isTrue();
+    }
+
+    @Test
+    void testAdaptiveConcurrencyLimit_BacksOffOnSlowCallsAndRecovers() {
+        // Given
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(10, 1, 20, 2.0, 0.5);
+
+        // When the backend answers fast, the limit grows
+        for (int i = 0; i < 50; i++) {
+            assertThat(limit.tryAcquire()).isTrue();
+            limit.onComplete(1_000_000, true);
+        }
+        int grown = limit.limit();
+        assertThat(grown).isGreaterThan(10);
+
+        // When it gets much slower than the baseline, the limit shrinks
+        assertThat(limit.tryAcquire()).isTrue();
+        limit.onComplete(10_000_000, true);
+
+        // Then
+        assertThat(limit.limit()).isLessThan(grown);
+    }
+
+    @Test
+    void testAdaptiveConcurrencyLimit_RejectsOverLimit() {
+        // Given
+        AdaptiveConcurrencyLimit limit = new AdaptiveConcurrencyLimit(2, 1, 20, 2.0, 0.5);
+
+        // When/Then
+        assertThat(limit.tryAcquire()).isTrue();
+        assertThat(limit.tryAcquire()).isTrue();
+        assertThat(limit.tryAcquire()).isFalse();
+        assertThat(limit.inFlight()).isEqualTo(2);
+    }
+
+    @Test
+    void testCall_FailsFastAndFallsBackWhenOpen() {
+        // Given
+        ResilientBackend backend = newBackend(1);
+        backend.call(() -> CompletableFuture.failedFuture(new IOException("down"))).exceptionally(_ -> null).join();
+        AtomicInteger attempts = new AtomicInteger();
+
+        // When
+        List<String> result = backend.<List<String>>call(() -> {
+            attempts.incrementAndGet();
+            return CompletableFuture.completedFuture(List.of("never"));
+        }, List::of).join();
+
+        // Then
+        assertThat(backend.breakerState()).isEqualTo(CircuitBreaker.State.OPEN);
+        assertThat(attempts.get()).isZero();
+        assertThat(result).isEmpty();
+        assertThatThrownBy(() -> backend.call(() -> CompletableFuture.completedFuture("never")).join())
+            .isInstanceOf(CompletionException.class)
+            .hasCauseInstanceOf(BackendUnavailableException.class);
+    }
+
+    @Test
+    void testCall_PropagatesRealFailures() {
+        // Given
+        ResilientBackend backend = newBackend(5);
+
+        // When/Then fallback is only for an unavailable backend, not for errors
+        assertThatThrownBy(() -> backend.call(() -> CompletableFuture.<List<String>>failedFuture(new IOException("bad query")), List::of).join())
+            .isInstanceOf(CompletionException.class)
+            .hasRootCauseInstanceOf(IOException.class);
+    }
+
+    @Test
+    void testCall_FallsBackOnTimeout() {
+        // Given
+        ResilientBackend backend = new ResilientBackend("test",
+            new CircuitBreaker(5, Duration.ofSeconds(10), 1, clock::get),
+            new AdaptiveConcurrencyLimit(10, 1, 20, 2.0, 0.5),
+            Duration.ofMillis(50),
+            clock::get);
+
+        // When
+        String result = backend.call(CompletableFuture<String>::new, () -> "fallback").join();
+
+        // Then
+        assertThat(result).isEqualTo("fallback");
+    }
+
+    private ResilientBackend newBackend(int failureThreshold) {
+        return new ResilientBackend("test",
+            new CircuitBreaker(failureThreshold, Duration.ofSeconds(10), 1, clock::get),
+            new AdaptiveConcurrencyLimit(10, 1, 20, 2.0, 0.5),
+            Duration.ofSeconds(5),
+            clock::get);
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResultCacheTest {
+
+    private final AtomicLong clock = new AtomicLong();
+    private final AtomicLong generation = new AtomicLong();
+    private final AtomicInteger searches = new AtomicInteger();
+
+    @Test
+    void testNormalise() {
+        assertThat(ResultCache.normalise("  red \t apple\n")).isEqualTo("red apple");
+        // the lexical search is case-sensitive, so is the cache
+        assertThat(ResultCache.normalise("Apple")).isEqualTo("Apple");
+        // composed and decomposed umlaut are the same query
+        assertThat(ResultCache.normalise("A\u0308pfel")).isEqualTo(ResultCache.normalise("\u00C4pfel"));
+    }
+
+    @Test
+    void testGet_CoalescesConcurrentIdenticalRequests() {
+        // Given
+        ResultCache cache = newCache(10);
+        CompletableFuture<SearchResult> pending = new CompletableFuture<>();
+
+        // When
+        CompletableFuture<SearchResult> first = cache.get(key("apple"), this::generation, () -> {
+            searches.incrementAndGet();
+            return pending;
+        });
+        CompletableFuture<SearchResult> second = cache.get(key("apple"), this::generation, this::search);
+        pending.complete(result("apple", "a.jpg"));
+
+        // Then
+        assertThat(searches.get()).isEqualTo(1);
+        assertThat(second.join()).isEqualTo(first.join());
+        assertThat(cache.hits()).isEqualTo(1);
+    }
+
+    @Test
+    void testGet_EvictsLeastRecentlyUsed() {
+        // Given
+        ResultCache cache = newCache(2);
+        cache.get(key("apple"), this::generation, this::search).join();
+        cache.get(key("plum"), this::generation, this::search).join();
+        cache.get(key("apple"), this::generation, this::search).join();
+
+        // When
+        cache.get(key("orange"), this::generation, this::search).join();
+        cache.get(key("apple"), this::generation, this::search).join();
+        cache.get(key("plum"), this::generation, this::search).join();
+
+        // Then apple, plum, orange, plum again
+        assertThat(searches.get()).isEqualTo(4);
+        assertThat(cache.size()).isEqualTo(2);
+    }
+
+    @Test
+    void testGet_ReloadsWhenIndexGenerationChanges() {
+        // Given
+        ResultCache cache = newCache(10);
+        cache.get(key("apple"), this::generation, this::search).join();
+
+        // When the index changes, but the generation was checked recently
+        generation.incrementAndGet();
+        cache.get(key("apple"), this::generation, this::search).join();
+        assertThat(searches.get()).isEqualTo(1);
+
+        // When the check interval passes
+        clock.addAndGet(Duration.ofSeconds(1).toNanos());
+        cache.get(key("apple"), this::generation, this::search).join();
+
+        // Then
+        assertThat(searches.get()).isEqualTo(2);
+    }
+
+    @Test
+    void testGet_BypassesCacheWhenGenerationUnknown() {
+        // Given
+        ResultCache cache = newCache(10);
+
+        // When
+        cache.get(key("apple"), _ -> {
+            throw new IllegalStateException("no stats");
+        }, this::search).join();
+        cache.get(key("apple"), _ -> CompletableFuture.failedFuture(new BackendUnavailableException("breaker open")),
+            this::search).join();
+
+        // Then
+        assertThat(searches.get()).isEqualTo(2);
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void testGet_DoesNotWaitForTheGenerationLookup() {
+        // Given
+        ResultCache cache = newCache(10);
+        CompletableFuture<Long> slowLookup = new CompletableFuture<>();
+
+        // When
+        CompletableFuture<SearchResult> result = cache.get(key("apple"), _ -> slowLookup, this::search);
+
+        // Then
+        assertThat(result).isNotDone();
+        assertThat(searches.get()).isZero();
+        slowLookup.complete(generation.get());
+        assertThat(result.join().items()).hasSize(1);
+        assertThat(searches.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testInvalidateFullPath_DropsOnlyResultsContainingTheItem() {
+        // Given
+        ResultCache cache = newCache(10);
+        cache.get(key("apple"), this::generation, () -> CompletableFuture.completedFuture(result("apple", "apple.jpg", "basket.jpg"))).join();
+        cache.get(key("plum"), this::generation, () -> CompletableFuture.completedFuture(result("plum", "plum.jpg"))).join();
+
+        // When
+        cache.invalidateFullPath("path/to/basket.jpg");
+
+        // Then
+        cache.get(key("apple"), this::generation, this::search).join();
+        cache.get(key("plum"), this::generation, this::search).join();
+        assertThat(searches.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testInvalidateFullPath_RightAfterAnAsynchronousLoadCompletes() throws InterruptedException {
+        // Given
+        ResultCache cache = newCache(10);
+        CompletableFuture<SearchResult> pending = new CompletableFuture<>();
+        CompletableFuture<SearchResult> first = cache.get(key("apple"), this::generation, () -> pending);
+        // runs as soon as the waiters are told, in the thread completing the search
+        CompletableFuture<Void> invalidated = first.thenRun(() -> cache.invalidateFullPath("path/to/apple.jpg"));
+
+        // When
+        Thread loader = Thread.ofPlatform().start(() -> pending.complete(result("apple", "apple.jpg")));
+        loader.join();
+        invalidated.join();
+
+        // Then
+        cache.get(key("apple"), this::generation, this::search).join();
+        assertThat(searches.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testInvalidateFullPath_WhileTheResultIsBeingLoaded() {
+        // Given
+        ResultCache cache = newCache(10);
+        CompletableFuture<SearchResult> pending = new CompletableFuture<>();
+        CompletableFuture<SearchResult> first = cache.get(key("apple"), this::generation, () -> pending);
+
+        // When
+        cache.invalidateFullPath("path/to/apple.jpg");
+        pending.complete(result("apple", "apple.jpg"));
+
+        // Then the caller gets what was found, but it isn't kept
+        assertThat(first.join().items()).hasSize(1);
+        cache.get(key("apple"), this::generation, this::search).join();
+        assertThat(searches.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testGet_ReportsAnIndexChangeOnce() {
+        // Given
+        AtomicInteger changes = new AtomicInteger();
+        ResultCache cache = new ResultCache(10, Duration.ofSeconds(1), clock::get, _ -> changes.incrementAndGet());
+        cache.get(key("apple"), this::generation, this::search).join();
+        clock.addAndGet(Duration.ofSeconds(1).toNanos());
+        CompletableFuture<Long> firstLookup = new CompletableFuture<>();
+        CompletableFuture<Long> secondLookup = new CompletableFuture<>();
+        CompletableFuture<SearchResult> first = cache.get(key("apple"), _ -> firstLookup, this::search);
+        CompletableFuture<SearchResult> second = cache.get(key("plum"), _ -> secondLookup, this::search);
+
+        // When both concurrent lookups find the index changed
+        firstLookup.complete(1L);
+        secondLookup.complete(1L);
+        first.join();
+        second.join();
+
+        // Then
+        assertThat(changes.get()).isEqualTo(1);
+    }
+
+    @Test
+    void testGet_KeepsTheLatestCheckedGeneration() {
+        // Given
+        AtomicInteger changes = new AtomicInteger();
+        ResultCache cache = new ResultCache(10, Duration.ofSeconds(1), clock::get, _ -> changes.incrementAndGet());
+        CompletableFuture<Long> earlierLookup = new CompletableFuture<>();
+        CompletableFuture<SearchResult> earlier = cache.get(key("apple"), _ -> earlierLookup, this::search);
+        clock.addAndGet(Duration.ofSeconds(1).toNanos());
+        cache.get(key("plum"), _ -> CompletableFuture.completedFuture(1L), this::search).join();
+
+        // When the earlier lookup is answered last
+        earlierLookup.complete(0L);
+        earlier.join();
+
+        // Then it neither replaces the later generation, nor is reported as a change
+        cache.get(key("plum"), this::generation, this::search).join();
+        assertThat(searches.get()).isEqualTo(2);
+        assertThat(changes.get()).isZero();
+    }
+
+    @Test
+    void testGet_DoesNotKeepPartialOrFailedResults() {
+        // Given
+        ResultCache cache = newCache(10);
+
+        // When
+        cache.get(key("apple"), this::generation,
+            () -> CompletableFuture.completedFuture(new SearchResult("apple", List.of(), true))).join();
+        cache.get(key("plum"), this::generation,
+            () -> CompletableFuture.failedFuture(new IllegalStateException("down"))).exceptionally(_ -> null).join();
+
+        // Then
+        assertThat(cache.size()).isZero();
+    }
+
+    @Test
+    void testCachedSearch_SearchesWhenTheStatsAreForbidden() throws IOException {
+        // Given an API key which may only search
+        AtomicInteger statsRequests = new AtomicInteger();
+        try (StubBackends.Stub encoder = StubBackends.startEncoder(Duration.ZERO);
+             StubBackends.Stub elasticsearch = StubBackends.startElasticsearch("catalogue",
+                 List.of(Path.of("src/test/resources/data.ndjson")), 0, Duration.ZERO);
+             ExecutorService executor = Executors.newFixedThreadPool(2)) {
+            elasticsearch.server().createContext("/catalogue/_stats", exchange -> {
+                statsRequests.incrementAndGet();
+                byte[] body = """
+                    {"error":{"type":"security_exception","reason":"action [indices:monitor/stats] is unauthorized"},"status":403}"""
+                    .getBytes(StandardCharsets.UTF_8);
+                exchange.getResponseHeaders().add("Content-Type", "application/json");
+                exchange.sendResponseHeaders(403, body.length);
+                exchange.getResponseBody().write(body);
+                exchange.close();
+            });
+            EnterpriseySearcher.setEncoderUrl(encoder.url());
+            ElasticsearchClient esClient = StubBackends.elasticsearchClient(elasticsearch);
+            try {
+                // When
+                List<SearchResult> results = new ArrayList<>();
+                for (int i = 0; i < 10; i++) {
+                    results.add(EnterpriseySearcher.cachedSearch("apple", "catalogue", esClient, executor).join());
+                }
+
+                // Then the cache is bypassed, and the stats aren't asked for every search
+                assertThat(results).allSatisfy(result -> assertThat(result.items()).isNotEmpty());
+                assertThat(EnterpriseySearcher.RESULT_CACHE.size()).isZero();
+                assertThat(statsRequests.get()).isLessThan(10);
+                assertThat(EnterpriseySearcher.ELASTICSEARCH_GUARD.breakerState()).isEqualTo(CircuitBreaker.State.CLOSED);
+            } finally {
+                EnterpriseySearcher.resetState();
+                esClient._transport().close();
+            }
+        }
+    }
+
+    private ResultCache newCache(int maxEntries) {
+        return new ResultCache(maxEntries, Duration.ofSeconds(1), clock::get);
+    }
+
+    private CompletableFuture<Long> generation(String index) {
+        return CompletableFuture.completedFuture(generation.get());
+    }
+
+    private CompletableFuture<SearchResult> search() {
+        searches.incrementAndGet();
+        return CompletableFuture.completedFuture(result("any", "any.jpg"));
+    }
+
+    private static ResultCache.Key key(String query) {
+        return new ResultCache.Key("catalogue", query, "test");
+    }
+
+    private static SearchResult result(String query, String... filenames) {
+        return new SearchResult(query, Arrays.stream(filenames)
+            .map(name -> new CatalogueItem(name, "path/to/" + name, new Price(new BigDecimal("1.00"), "USD")))
+            .toList());
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ResultRendererTest {
+
+    @Test
+    void testWrite_TextIdenticalToFormerToString() throws IOException {
+        // Given
+        Random random = new Random(42);
+        List<SearchResult> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            List<CatalogueItem> items = new ArrayList<>();
+            for (int j = 0; j < i % 7; j++) {
+                // fractions of cents, halves, negative amounts, no price and no file name
+                BigDecimal value = BigDecimal.valueOf(random.nextLong(-1_000_000, 10_000_000), random.nextInt(0, 5));
+                Price price = j == 3 ? null : new Price(value, j % 2 == 0 ? "EUR" : "USD");
+                items.add(new CatalogueItem(j == 5 ? null : "file-" + i + "-" + j + ".jpg", "path", price));
+            }
+            results.add(new SearchResult(i % 11 == 0 ? "Heckscheibenwaschanlage ä" : "query " + i, items));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When
+        new ResultRenderer().write(results, ResultRenderer.Format.TEXT, Channels.newChannel(out));
+
+        // Then
+        StringBuilder expected = new StringBuilder();
+        results.forEach(result -> expected.append(formerToString(result)).append('\n'));
+        assertThat(out.toString(StandardCharsets.UTF_8)).isEqualTo(expected.toString());
+        assertThat(results).allMatch(result -> result.toString().equals(formerToString(result)));
+    }
+
+    @Test
+    void testWrite_WholeBatchInOneChannelWrite() throws IOException {
+        // Given
+        List<SearchResult> results = new ArrayList<>();
+        for (int i = 0; i < 1_000; i++) {
+            results.add(new SearchResult("query " + i, List.of(createItem("apple.jpg", "12.34"), createItem("plum.jpg", "0.5"))));
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int[] writes = {0};
+        WritableByteChannel delegate = Channels.newChannel(out);
+        WritableByteChannel counting = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) throws IOException {
+                writes[0]++;
+                return delegate.write(src);
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        ResultRenderer renderer = new ResultRenderer();
+
+        // When
+        renderer.write(results, ResultRenderer.Format.TEXT, counting);
+        renderer.write(results.subList(0, 1), ResultRenderer.Format.TEXT, counting);
+
+        // Then
+        assertThat(writes[0]).isEqualTo(2);
+        assertThat(out.toString(StandardCharsets.UTF_8).lines())
+            .hasSize(1_001)
+            .startsWith("query 0: [apple.jpg (12.34 USD), plum.jpg (0.50 USD)]")
+            .endsWith("query 0: [apple.jpg (12.34 USD), plum.jpg (0.50 USD)]");
+    }
+
+    @Test
+    void testWrite_NdjsonParsesBack() throws IOException {
+        // Given
+        SearchResult result = new SearchResult("\"apple\"\n\\ \u0001 ä", List.of(
+            createItem("apple.jpg", "-12.3"),
+            new CatalogueItem("free.jpg", "path/to/free.jpg", null)), true);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        // When
+        new ResultRenderer().write(List.of(result, result), ResultRenderer.Format.NDJSON, Channels.newChannel(out));
+
+        // Then
+        List<String> lines = out.toString(StandardCharsets.UTF_8).lines().toList();
+        assertThat(lines).hasSize(2);
+        JsonNode json = EnterpriseySearcher.OBJECT_MAPPER.readTree(lines.getFirst());
+        assertThat(json.path("query").asText()).isEqualTo(result.query());
+        assertThat(json.path("partial").asBoolean()).isTrue();
+        assertThat(json.path("items").path(1).path("price").isNull()).isTrue();
+        // the items read back, the way they are read from Elasticsearch
+        CatalogueItem first = EnterpriseySearcher.OBJECT_MAPPER.treeToValue(json.path("items").path(0), CatalogueItem.class);
+        assertThat(first).isEqualTo(result.items().getFirst());
+        assertThat(first.price().toString()).isEqualTo("-12.30 USD");
+    }
+
+    @Test
+    void testPrice_ReadFromElasticsearchSource() throws IOException {
+        // When
+        CatalogueItem item = EnterpriseySearcher.OBJECT_MAPPER.readValue("""
+            {"filename":"plums.jpg","full-path":"/talk-images/plums.jpg","price":{"currency":"USD","value":12.345}}""", CatalogueItem.class);
+        CatalogueItem noValue = EnterpriseySearcher.OBJECT_MAPPER.readValue("""
+            {"filename":"plums.jpg","full-path":"/talk-images/plums.jpg","price":{"currency":"USD"}}""", CatalogueItem.class);
+
+        // Then
+        assertThat(item.price().cents()).isEqualTo(1235);
+        assertThat(item.price().value()).isEqualTo(new BigDecimal("12.35"));
+        assertThat(item.price()).isEqualTo(new Price(new BigDecimal("12.350"), "USD"));
+        assertThat(noValue.price()).isNull();
+    }
+
+    // what SearchResult.toString used to be, with prices held as BigDecimal
+    private static String formerToString(SearchResult result) {
+        return String.format("%s: %s", result.query(), result.items().stream()
+            .map(item -> String.format("%s (%s)", item.filename(), item.price() == null
+                ? "priceless"
+                : item.price().value().setScale(2, RoundingMode.HALF_UP).toPlainString() + " " + item.price().currency()))
+            .toList());
+    }
+
+    private static CatalogueItem createItem(String name, String price) {
+        return new CatalogueItem(name, "path/to/" + name, new Price(new BigDecimal(price), "USD"));
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class ScatterGatherTest {
+
+    private static final List<Path> DATA = List.of(Path.of("src/test/resources/data.ndjson"));
+
+    private static final List<AutoCloseable> resources = new ArrayList<>();
+    private static ElasticsearchClient europe;
+    private static ElasticsearchClient america;
+    private static ElasticsearchClient asia;
+
+    @BeforeAll
+    static void startBackends() throws IOException {
+        var encoder = StubBackends.startEncoder(Duration.ZERO);
+        resources.add(encoder);
+        EnterpriseySearcher.setEncoderUrl(encoder.url());
+        europe = start("catalogue-eu", DATA, 0, Duration.ZERO);
+        america = start("catalogue-us", List.of(), 20, Duration.ZERO);
+        asia = start("catalogue-apac", DATA, 0, Duration.ofSeconds(2));
+    }
+
+    @AfterAll
+    static void stopBackends() throws Exception {
+        EnterpriseySearcher.resetState();
+        for (AutoCloseable resource : resources.reversed()) {
+            resource.close();
+        }
+    }
+
+    @Test
+    void testSearch_MergesAllTargets() {
+        // Given
+        ScatterGather scatterGather = new ScatterGather(List.of(
+            ScatterGather.Target.of("eu", europe, "catalogue-eu", 1.0, Duration.ofSeconds(5)),
+            ScatterGather.Target.of("us", america, "catalogue-us", 1.0, Duration.ofSeconds(5))),
+            2, Duration.ofSeconds(1));
+
+        // When
+        SearchResult result;
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            result = scatterGather.search("apple", SearchFilter.NONE, executor).join();
+        }
+
+        // Then
+        // the apples are found by both searches in Europe, the synthetic items only by kNN in America
+        assertThat(result.partial()).isFalse();
+        assertThat(result.items()).hasSize(EnterpriseySearcher.TOP_K).doesNotHaveDuplicates();
+        assertThat(result.items().getFirst().filename()).contains("apple");
+        assertThat(result.items()).anyMatch(item -> item.filename().startsWith("synthetic-"));
+    }
+
+    @Test
+    void testSearch_DoesNotWaitForSlowTargetAfterQuorum() {
+        // Given
+        ScatterGather scatterGather = new ScatterGather(List.of(
+            ScatterGather.Target.of("eu", europe, "catalogue-eu", 1.0, Duration.ofSeconds(10)),
+            ScatterGather.Target.of("us", america, "catalogue-us", 1.0, Duration.ofSeconds(10)),
+            ScatterGather.Target.of("apac", asia, "catalogue-apac", 1.0, Duration.ofSeconds(10))),
+            2, Duration.ofMillis(100));
+
+        // When
+        SearchResult result;
+        Duration elapsed;
+        // closing the executor waits for the slow target, the result doesn't
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            long start = System.nanoTime();
+            result = scatterGather.search("apple", SearchFilter.NONE, executor).join();
+            elapsed = Duration.ofNanos(System.nanoTime() - start);
+        }
+
+        // Then
+        // Asia needs at least twice 2 seconds, for the index check and the search
+        assertThat(elapsed).isLessThan(Duration.ofSeconds(2));
+        assertThat(result.partial()).isTrue();
+        assertThat(result.items()).hasSize(EnterpriseySearcher.TOP_K);
+    }
+
+    @Test
+    void testSearch_TimesOutSlowTargetWithoutQuorum() {
+        // Given
+        ScatterGather scatterGather = new ScatterGather(List.of(
+            ScatterGather.Target.of("eu", europe, "catalogue-eu", 1.0, Duration.ofSeconds(5)),
+            ScatterGather.Target.of("apac", asia, "catalogue-apac", 1.0, Duration.ofMillis(300))),
+            2, Duration.ofSeconds(10));
+
+        // When
+        SearchResult result;
+        Duration elapsed;
+        // closing the executor waits for the slow target, the result doesn't
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            long start = System.nanoTime();
+            result = scatterGather.search("apple", SearchFilter.NONE, executor).join();
+            elapsed = Duration.ofNanos(System.nanoTime() - start);
+        }
+
+        // Then
+        assertThat(elapsed).isLessThan(Duration.ofSeconds(2));
+        assertThat(result.partial()).isTrue();
+        assertThat(result.items()).isNotEmpty();
+    }
+
+    @Test
+    void testCombineUsingRRF_AppliesWeights() {
+        // Given
+        CatalogueItem apple = new CatalogueItem("apple.jpg", "/eu/apple.jpg", null);
+        CatalogueItem plum = new CatalogueItem("plum.jpg", "/us/plum.jpg", null);
+        List<List<CatalogueItem>> results = List.of(List.of(apple), List.of(plum));
+
+        // When
+        List<CatalogueItem> preferringEurope = EnterpriseySearcher.combineUsingRRF(results, List.of(2.0, 1.0), 60, 2);
+        List<CatalogueItem> preferringAmerica = EnterpriseySearcher.combineUsingRRF(results, List.of(1.0, 2.0), 60, 2);
+
+        // Then
+        assertThat(preferringEurope).containsExactly(apple, plum);
+        assertThat(preferringAmerica).containsExactly(plum, apple);
+    }
+
+    private static ElasticsearchClient start(String index, List<Path> bulkFiles, int syntheticDocuments, Duration latency)
+        throws IOException {
+        var elasticsearch = StubBackends.startElasticsearch(index, bulkFiles, syntheticDocuments, latency);
+        resources.add(elasticsearch);
+        ElasticsearchClient esClient = StubBackends.elasticsearchClient(elasticsearch);
+        resources.add(esClient._transport());
+        return esClient;
+    }
+}
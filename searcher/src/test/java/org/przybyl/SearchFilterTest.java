@@ -0,0 +1,147 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import co.elastic.clients.elasticsearch.ElasticsearchClient;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class SearchFilterTest {
+
+    private static final String INDEX = "catalogue";
+
+    private static StubBackends.Stub elasticsearch;
+    private static ElasticsearchClient esClient;
+
+    @BeforeAll
+    static void startElasticsearch() throws IOException {
+        // 12 items, 11 of them with various prices in various currencies, one priceless
+        elasticsearch = StubBackends.startElasticsearch(INDEX,
+            List.of(Path.of("src/test/resources/data.ndjson"), Path.of("src/test/resources/prices.ndjson")), 0, Duration.ZERO);
+        esClient = StubBackends.elasticsearchClient(elasticsearch);
+    }
+
+    @AfterAll
+    static void stopElasticsearch() throws IOException {
+        esClient._transport().close();
+        elasticsearch.close();
+    }
+
+    @Test
+    void testPerformKnnSearch_FindsNearestAmongMatchingItemsOnly() throws IOException {
+        // Given
+        SearchFilter underTwoUsd = SearchFilter.price(null, new BigDecimal("2"), "USD");
+
+        // When
+        List<CatalogueItem> found = EnterpriseySearcher.performKnnSearch(StubBackends.fixedVector("apple"), underTwoUsd, INDEX, esClient);
+
+        // Then
+        // without pushing the filter down, some of the 5 nearest items would have to be dropped, here all 3 matching ones are found
+        assertThat(found).extracting(item -> item.price().toString())
+            .containsExactlyInAnyOrder("2.00 USD", "0.59 USD", "2.00 USD");
+    }
+
+    @Test
+    void testPerformKnnSearch_HandlesPricelessItemsExplicitly() throws IOException {
+        // Given
+        SearchFilter euros = SearchFilter.price(new BigDecimal("10"), null, "EUR");
+        float[] vector = StubBackends.fixedVector("apple");
+
+        // When
+        List<CatalogueItem> excluding = EnterpriseySearcher.performKnnSearch(vector, euros, INDEX, esClient);
+        List<CatalogueItem> including = EnterpriseySearcher.performKnnSearch(vector,
+            euros.withPricelessItems(SearchFilter.PricelessItems.INCLUDE), INDEX, esClient);
+        List<CatalogueItem> pricelessOnly = EnterpriseySearcher.performKnnSearch(vector,
+            new SearchFilter(null, null, null, SearchFilter.PricelessItems.ONLY), INDEX, esClient);
+
+        // Then
+        assertThat(excluding).extracting(item -> item.price().toString())
+            .containsExactlyInAnyOrder("10.00 EUR", "2137.00 EUR", "11500.00 EUR");
+        assertThat(including).hasSize(4).filteredOn(item -> item.price() == null).hasSize(1);
+        assertThat(pricelessOnly).hasSize(1).allMatch(item -> item.price() == null);
+    }
+
+    @Test
+    void testPerformClassicSearch_AppliesFilter() throws IOException {
+        // Given
+        List<CatalogueItem> unfiltered = EnterpriseySearcher.performClassicSearch("apple", INDEX, esClient);
+
+        // When
+        List<CatalogueItem> filtered = EnterpriseySearcher.performClassicSearch("apple",
+            SearchFilter.price(null, new BigDecimal("5"), null), INDEX, esClient);
+
+        // Then
+        assertThat(unfiltered).hasSizeGreaterThan(filtered.size());
+        assertThat(filtered).isNotEmpty()
+            .allMatch(item -> item.filename().contains("apple"))
+            .allMatch(item -> item.price().value().compareTo(new BigDecimal("5")) <= 0);
+    }
+
+    @Test
+    void testPerformKnnSearch_FindsItemsPricedExactlyAtTheBounds() throws IOException {
+        // Given
+        // as doubles, 0.29 and 1.10 scaled by 100 are just below and just above whole cents
+        try (StubBackends.Stub oddPrices = StubBackends.startElasticsearch(INDEX, List.of(Path.of("src/test/resources/data.ndjson"),
+            Path.of("src/test/resources/prices.ndjson"), Path.of("src/test/resources/odd-prices.ndjson")), 0, Duration.ZERO)) {
+            ElasticsearchClient client = StubBackends.elasticsearchClient(oddPrices);
+            SearchFilter exactlyUsd = SearchFilter.price(new BigDecimal("0.29"), new BigDecimal("0.29"), "USD");
+            SearchFilter exactlyEur = SearchFilter.price(new BigDecimal("1.10"), new BigDecimal("1.1"), "EUR");
+            SearchFilter betweenCents = SearchFilter.price(new BigDecimal("0.291"), new BigDecimal("1.099"), null);
+
+            // When
+            List<CatalogueItem> usd = EnterpriseySearcher.performKnnSearch(StubBackends.fixedVector("apple"), exactlyUsd, INDEX, client);
+            List<CatalogueItem> eur = EnterpriseySearcher.performKnnSearch(StubBackends.fixedVector("apple"), exactlyEur, INDEX, client);
+            List<CatalogueItem> between = EnterpriseySearcher.performKnnSearch(StubBackends.fixedVector("apple"), betweenCents, INDEX, client);
+            client._transport().close();
+
+            // Then
+            assertThat(usd).extracting(item -> item.price().toString()).containsExactly("0.29 USD");
+            assertThat(eur).extracting(item -> item.price().toString()).containsExactly("1.10 EUR");
+            assertThat(between).extracting(item -> item.price().toString()).containsExactly("0.59 USD");
+        }
+    }
+
+    @Test
+    void testSearchProfile_DiffersByFilter() {
+        // When/Then
+        assertThat(EnterpriseySearcher.searchProfile(SearchFilter.NONE)).isEqualTo(EnterpriseySearcher.SEARCH_PROFILE);
+        assertThat(EnterpriseySearcher.searchProfile(SearchFilter.price(null, new BigDecimal("5.00"), "EUR")))
+            .isEqualTo(EnterpriseySearcher.searchProfile(SearchFilter.price(null, new BigDecimal("5"), "EUR")))
+            .isNotEqualTo(EnterpriseySearcher.searchProfile(SearchFilter.price(null, new BigDecimal("5"), "USD")))
+            .isNotEqualTo(EnterpriseySearcher.searchProfile(
+                SearchFilter.price(null, new BigDecimal("5"), "EUR").withPricelessItems(SearchFilter.PricelessItems.INCLUDE)));
+    }
+
+    @Test
+    void testSearchFilter_RejectsContradictions() {
+        // When/Then
+        assertThatThrownBy(() -> SearchFilter.price(new BigDecimal("5"), new BigDecimal("1"), null))
+            .isInstanceOf(IllegalArgumentException.class);
+        assertThatThrownBy(() -> SearchFilter.price(null, null, "EUR").withPricelessItems(SearchFilter.PricelessItems.ONLY))
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import org.junit.jupiter.api.Test;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Supplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SemanticQueryCacheTest {
+
+    private static final int DIMENSIONS = 37; // deliberately not a multiple of any vector length
+    private static final String PROFILE = "hybrid";
+    private static final long GENERATION = 1;
+
+    @Test
+    void testLookup_HitsSimilarVectorAndMissesDifferentOne() {
+        // Given
+        SemanticQueryCache cache = new SemanticQueryCache(8, DIMENSIONS, 0.95f, 0, new Random(1));
+        float[] apple = randomVector(new Random(42));
+        List<CatalogueItem> appleResults = List.of(createItem("apple"));
+        cache.put("catalogue", GENERATION, PROFILE, apple, appleResults);
+
+        // When
+        float[] apfel = perturbed(apple, 0.01f, new Random(7));
+        float[] plum = randomVector(new Random(43));
+
+        // Then
+        assertThat(cache.lookup("catalogue", GENERATION, PROFILE, apfel)).isEqualTo(appleResults);
+        // the length of the vector doesn't matter, only its direction
+        assertThat(cache.lookup("catalogue", GENERATION, PROFILE, scaled(apple, 3))).isEqualTo(appleResults);
+        assertThat(cache.lookup("catalogue", GENERATION, PROFILE, plum)).isNull();
+        assertThat(cache.stats().hits()).isEqualTo(2);
+        assertThat(cache.stats().lookups()).isEqualTo(3);
+    }
+
+    @Test
+    void testLookup_ReturnsMostSimilarEntry() {
+        // Given
+        SemanticQueryCache cache = new SemanticQueryCache(8, DIMENSIONS, 0.5f, 0, new Random(1));
+        float[] apple = randomVector(new Random(42));
+        cache.put("catalogue", GENERATION, PROFILE, perturbed(apple, 0.3f, new Random(1)), List.of(createItem("far")));
+        cache.put("catalogue", GENERATION, PROFILE, perturbed(apple, 0.01f, new Random(2)), List.of(createItem("near")));
+
+        // When
+        List<CatalogueItem> result = cache.lookup("catalogue", GENERATION, PROFILE, apple);
+
+        // Then
+        assertThat(result).extracting(CatalogueItem::filename).containsExactly("near");
+    }
+
+    @Test
+    void testLookup_RespectsScope() {
+        // Given
+        SemanticQueryCache cache = new SemanticQueryCache(8, DIMENSIONS, 0.95f, 0, new Random(1));
+        float[] apple = randomVector(new Random(42));
+        cache.put("catalogue", GENERATION, PROFILE, apple, List.of(createItem("apple")));
+
+        // When/Then
+        assertThat(cache.lookup("other-index", GENERATION, PROFILE, apple)).isNull();
+        assertThat(cache.lookup("catalogue", GENERATION, "other-profile", apple)).isNull();
+    }
+
+    @Test
+    void testInvalidate_DropsResultsOfTheDocumentOrIndex() {
+        // Given
+        SemanticQueryCache cache = new SemanticQueryCache(8, DIMENSIONS, 0.95f, 0, new Random(1));
+        float[] apple = randomVector(new Random(1));
+        float[] plum = randomVector(new Random(2));
+        float[] shoe = randomVector(new Random(3));
+        cache.put("catalogue", GENERATION, PROFILE, apple, List.of(createItem("apple"), createItem("basket")));
+        cache.put("catalogue", GENERATION, PROFILE, plum, List.of(createItem("plum")));
+        cache.put("shoes", GENERATION, PROFILE, shoe, List.of(createItem("shoe")));
+
+        // When
+        cache.invalidateFullPath("path/to/basket");
+        cache.invalidateIndex("shoes");
+
+        // Then
+        assertThat(cache.lookup("catalogue", GENERATION, PROFILE, apple)).isNull();
+        assertThat(cache.lookup("catalogue", GENERATION, PROFILE, plum)).extracting(CatalogueItem::filename).containsExactly("plum");
+        assertThat(cache.lookup("shoes", GENERATION, PROFILE, shoe)).isNull();
+    }
+
+    @Test
+    void testResultCache_DropsSemanticResultsWhenTheIndexChanges() {
+        // Given
+        SemanticQueryCache semantic = new SemanticQueryCache(8, DIMENSIONS, 0.95f, 0, new Random(1));
+        ResultCache results = new ResultCache(8, Duration.ZERO, System::nanoTime, semantic::invalidateIndex);
+        float[] apple = randomVector(new Random(1));
+        semantic.put("catalogue", GENERATION, PROFILE, apple, List.of(createItem("apple")));
+        long[] generation = {1};
+        Supplier<CompletableFuture<SearchResult>> search =
+            () -> CompletableFuture.completedFuture(new SearchResult("apple", List.of(createItem("apple")), false, null));
+        results.get(new ResultCache.Key("catalogue", "apple", PROFILE), _ -> CompletableFuture.completedFuture(generation[0]), search).join();
+
+        // When
+        generation[0]++;
+        results.get(new ResultCache.Key("catalogue", "apple", PROFILE), _ -> CompletableFuture.completedFuture(generation[0]), search).join();
+
+        // Then
+        assertThat(semantic.lookup("catalogue", GENERATION, PROFILE, apple)).isNull();
+    }
+
+    @Test
+    void testLookup_UsesOnlyResultsOfTheCurrentGeneration() {
+        // Given
+        SemanticQueryCache cache = new SemanticQueryCache(8, DIMENSIONS, 0.95f, 0, new Random(1));
+        float[] apple = randomVector(new Random(1));
+        cache.put("catalogue", GENERATION, PROFILE, apple, List.of(createItem("apple")));
+
+        // When the index changes, and a search started before finishes only then
+        List<CatalogueItem> afterTheChange = cache.lookup("catalogue", GENERATION + 1, PROFILE, apple);
+        cache.put("catalogue", GENERATION, PROFILE, apple, List.of(createItem("late apple")));
+
+        // Then
+        assertThat(afterTheChange).isNull();
+        assertThat(cache.lookup("catalogue", GENERATION + 1, PROFILE, apple)).isNull();
+        cache.put("catalogue", GENERATION + 1, PROFILE, apple, List.of(createItem("new apple")));
+        assertThat(cache.lookup("catalogue", GENERATION + 1, PROFILE, apple)).extracting(CatalogueItem::filename).containsExactly("new apple");
+    }
+
+    @Test
+    void testPut_OverwritesOldestWhenFull() {
+        // Given
+        SemanticQueryCache cache = new SemanticQueryCache(2, DIMENSIONS, 0.95f, 0, new Random(1));
+        float[] first = randomVector(new Random(1));
+        float[] second = randomVector(new Random(2));
+        float[] third = randomVector(new Random(3));
+
+        // When
+        cache.put("catalogue", GENERATION, PROFILE, first, List.of(createItem("first")));
+        cache.put("catalogue", GENERATION, PROFILE, second, List.of(createItem("second")));
+        cache.put("catalogue", GENERATION, PROFILE, third, List.of(createItem("third")));
+
+        // Then
+        assertThat(cache.lookup("catalogue", GENERATION, PROFILE, first)).isNull();
+        assertThat(cache.lookup("catalogue", GENERATION, PROFILE, second)).extracting(CatalogueItem::filename).containsExactly("second");
+        assertThat(cache.lookup("catalogue", GENERATION, PROFILE, third)).extracting(CatalogueItem::filename).containsExactly("third");
+    }
+
+    @Test
+    void testRecordVerification_CountsFalseHits() {
+        // Given
+        SemanticQueryCache cache = new SemanticQueryCache(2, DIMENSIONS, 0.95f, 1.0, new Random(1));
+        List<CatalogueItem> cached = List.of(createItem("apple"), createItem("plum"));
+
+        // When
+        assertThat(cache.shouldVerify()).isTrue();
+        cache.recordVerification(cached, List.of(createItem("plum"), createItem("apple")));
+        cache.recordVerification(cached, List.of(createItem("apple"), createItem("shoe")));
+
+        // Then
+        assertThat(cache.stats().verifications()).isEqualTo(2);
+        assertThat(cache.stats().falseHits()).isEqualTo(1);
+        assertThat(cache.stats().falseHitRate()).isEqualTo(0.5);
+    }
+
+    private static float[] randomVector(Random random) {
+        float[] vector = new float[DIMENSIONS];
+        for (int i = 0; i < DIMENSIONS; i++) {
+            vector[i] = (float) random.nextGaussian();
+        }
+        return vector;
+    }
+
+    private static float[] perturbed(float[] vector, float noise, Random random) {
+        float[] result = vector.clone();
+        for (int i = 0; i < result.length; i++) {
+            result[i] += noise * (float) random.nextGaussian();
+        }
+        return result;
+    }
+
+    private static float[] scaled(float[] vector, float factor) {
+        float[] result = vector.clone();
+        for (int i = 0; i < result.length; i++) {
+            result[i] *= factor;
+        }
+        return result;
+    }
+
+    private static CatalogueItem createItem(String name) {
+        return new CatalogueItem(name, "path/to/" + name, new Price(new BigDecimal("1.00"), "USD"));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright 2025 Piotr Przybył
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <https://www.gnu.org/licenses/>.
+ */
+package org.przybyl;
+
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/// Forks JVMs, so it's run with the integration tests, by `mvn verify`.
+@Tag("forked-jvm")
+public class StartupBenchmarkIntTest {
+
+    @Test
+    void testMeasure_TimesTheSearcherAgainstTheStubs() throws Exception {
+        // Given
+        try (StubBackends.Stub encoder = StubBackends.startEncoder(Duration.ZERO);
+             StubBackends.Stub elasticsearch = StubBackends.startElasticsearch("catalogue",
+                 List.of(Path.of("src/test/resources/data.ndjson")), 0, Duration.ZERO)) {
+            List<String> command = StartupBenchmark.command(System.getProperty("java.class.path"),
+                List.of("--enable-preview", "--add-modules", "jdk.incubator.vector"));
+
+            // When
+            StartupBenchmark.Run run = StartupBenchmark.measure(command, StartupBenchmark.environment(encoder, elasticsearch));
+
+            // Then
+            assertThat(run.firstResult()).isPositive().isLessThanOrEqualTo(run.exit());
+        }
+    }
+
+    @Test
+    void testMeasure_ReportsWhatTheFailedSearcherPrinted() {
+        // Given
+        List<String> command = StartupBenchmark.command("no-such-directory", List.of());
+
+        // When/Then
+        assertThatThrownBy(() -> StartupBenchmark.measure(command, Map.of()))
+            .isInstanceOf(IOException.class)
+            .hasMessageContaining("exit code 1")
+            .hasMessageContaining("Could not find or load main class");
+    }
+}